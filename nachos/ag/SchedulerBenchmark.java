@@ -0,0 +1,520 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that benchmarks the configured scheduler instead of testing
+ * the kernel. <tt>make bench</tt> in a project directory runs it under every
+ * scheduler, in several forks of the JVM.
+ *
+ * <p>
+ * Each workload is run <tt>warmup</tt> times to let the JIT settle, and then
+ * <tt>iterations</tt> times for real. For every metric, the mean and standard
+ * deviation across the measured iterations are printed on a line of the form
+ *
+ * <pre>
+ * bench <i>scheduler</i> <i>fork</i> <i>workload</i> <i>metric</i> <i>mean</i> <i>stddev</i>
+ * </pre>
+ *
+ * <p>
+ * Host times are in nanoseconds, simulated times in ticks. The workloads are:
+ *
+ * <ul>
+ * <li><tt>queue</tt>: <tt>threads</tt> threads of mixed priority wait on a
+ * queue and are then dequeued, with interrupts disabled and no context
+ * switches, giving the cost of <tt>waitForAccess()</tt> and
+ * <tt>nextThread()</tt> alone.
+ * <li><tt>pingpong</tt>: two threads hand a lock back and forth
+ * <tt>rounds</tt> times.
+ * <li><tt>chain</tt>: a high-priority thread waits behind a chain of
+ * <tt>depth</tt> threads, each waiting on a lock held by the next.
+ * <li><tt>yield</tt>: <tt>threads</tt> threads do a unit of work and yield,
+ * <tt>yields</tt> times each on average, and Jain's fairness index of the work
+ * each got done is reported.
+ * <li><tt>join</tt>: a binary tree of threads, <tt>tree</tt> levels deep,
+ * where each thread forks and joins its two children.
+ * <li><tt>periodic</tt>: three periodic threads run <tt>jobs</tt> jobs each,
+ * alongside three threads that never block, and the fraction of jobs that
+ * miss their deadline is reported. The jobs of two of them are due by the end
+ * of their period; those of the third are due sooner than they can finish,
+ * so that there are always misses to count. Under
+ * <tt>EDFScheduler</tt> the periodic threads are released by
+ * <tt>setPeriod()</tt> and <tt>finishJob()</tt>, and the scheduler's count of
+ * misses is checked against the workload's own; under the other schedulers
+ * they sleep on the alarm until their next release.
+ * </ul>
+ *
+ * <p>
+ * All of these, and <tt>fork</tt>, the number printed to tell forks apart,
+ * are given as <tt>-#</tt> arguments.
+ */
+public class SchedulerBenchmark extends AutoGrader {
+    /**
+     * Allocate a new scheduler benchmark.
+     */
+    public SchedulerBenchmark() {
+    }
+
+    void init() {
+	fork = getIntegerArgument("fork");
+	warmup = getIntegerArgument("warmup");
+	iterations = getIntegerArgument("iterations");
+	threads = getIntegerArgument("threads");
+	rounds = getIntegerArgument("rounds");
+	depth = getIntegerArgument("depth");
+	yields = getIntegerArgument("yields");
+	tree = getIntegerArgument("tree");
+	jobs = getIntegerArgument("jobs");
+
+	Lib.assertTrue(warmup >= 0 && iterations > 0 && threads > 0 &&
+		       rounds > 0 && depth > 0 && yields > 0 && tree >= 0 &&
+		       jobs > 0);
+    }
+
+    void run() {
+	String name = ThreadedKernel.scheduler.getClass().getName();
+	scheduler = name.substring(name.lastIndexOf('.') + 1);
+
+	measure(new QueueWorkload());
+	measure(new PingPongWorkload());
+	measure(new ChainWorkload());
+	measure(new YieldWorkload());
+	measure(new JoinWorkload());
+	measure(new PeriodicWorkload());
+
+	kernel.terminate();
+    }
+
+    /**
+     * Run a workload <tt>warmup</tt> times and then <tt>iterations</tt>
+     * times, and report the host and simulated time per operation, along
+     * with any metrics of the workload's own.
+     */
+    private void measure(Workload workload) {
+	for (int i=0; i<warmup; i++)
+	    workload.runOnce();
+
+	double[] nanos = new double[iterations];
+	double[] ticks = new double[iterations];
+
+	for (int i=0; i<iterations; i++) {
+	    long startTicks = getTime();
+	    long startNanos = System.nanoTime();
+
+	    long ops = workload.runOnce();
+
+	    nanos[i] = (double) (System.nanoTime() - startNanos) / ops;
+	    ticks[i] = (double) (getTime() - startTicks) / ops;
+	    workload.record(i);
+	}
+
+	report(workload.name, "ns/op", nanos);
+	report(workload.name, "ticks/op", ticks);
+	workload.report();
+    }
+
+    private void report(String workload, String metric, double[] samples) {
+	double sum = 0;
+	for (int i=0; i<samples.length; i++)
+	    sum += samples[i];
+	double mean = sum / samples.length;
+
+	double squares = 0;
+	for (int i=0; i<samples.length; i++)
+	    squares += (samples[i] - mean) * (samples[i] - mean);
+	double stddev = Math.sqrt(squares / samples.length);
+
+	System.out.println("bench " + scheduler + " " + fork + " " + workload +
+			   " " + metric + " " +
+			   String.format("%.3f %.3f", mean, stddev));
+    }
+
+    private abstract class Workload {
+	Workload(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Run the workload once, from the main thread, and return the number
+	 * of operations it did.
+	 */
+	abstract long runOnce();
+
+	/**
+	 * Note the results of the measured iteration just run.
+	 */
+	void record(int iteration) {
+	}
+
+	/**
+	 * Report the workload's own metrics.
+	 */
+	void report() {
+	}
+
+	String name;
+    }
+
+    private class QueueWorkload extends Workload {
+	QueueWorkload() {
+	    super("queue");
+
+	    pool = new KThread[threads];
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    for (int i=0; i<threads; i++) {
+		pool[i] = new KThread();
+		ThreadedKernel.scheduler.setPriority(pool[i], i%7 + 1);
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	long runOnce() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+	    long start = System.nanoTime();
+	    for (int i=0; i<threads; i++)
+		queue.waitForAccess(pool[i]);
+	    long middle = System.nanoTime();
+	    for (int i=0; i<threads; i++)
+		Lib.assertTrue(queue.nextThread() != null);
+	    long end = System.nanoTime();
+
+	    // let the last thread dequeued give up the queue
+	    Lib.assertTrue(queue.nextThread() == null);
+
+	    Machine.interrupt().restore(intStatus);
+
+	    waitNanos = (double) (middle - start) / threads;
+	    nextNanos = (double) (end - middle) / threads;
+	    return threads;
+	}
+
+	void record(int iteration) {
+	    waitForAccess[iteration] = waitNanos;
+	    nextThread[iteration] = nextNanos;
+	}
+
+	void report() {
+	    SchedulerBenchmark.this.report(name, "ns/waitForAccess",
+					   waitForAccess);
+	    SchedulerBenchmark.this.report(name, "ns/nextThread", nextThread);
+	}
+
+	private KThread[] pool;
+	private double waitNanos, nextNanos;
+	private double[] waitForAccess = new double[iterations];
+	private double[] nextThread = new double[iterations];
+    }
+
+    private class PingPongWorkload extends Workload {
+	PingPongWorkload() {
+	    super("pingpong");
+	}
+
+	long runOnce() {
+	    final Lock lock = new Lock();
+
+	    Runnable player = new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds; i++) {
+			lock.acquire();
+			KThread.yield();
+			lock.release();
+		    }
+		}
+	    };
+
+	    KThread ping = new KThread(player).setName("ping");
+	    KThread pong = new KThread(player).setName("pong");
+	    ping.fork();
+	    pong.fork();
+	    ping.join();
+	    pong.join();
+
+	    return 2 * rounds;
+	}
+    }
+
+    private class ChainWorkload extends Workload {
+	ChainWorkload() {
+	    super("chain");
+	}
+
+	long runOnce() {
+	    final Lock[] locks = new Lock[depth];
+	    for (int i=0; i<depth; i++)
+		locks[i] = new Lock();
+
+	    final Semaphore holding = new Semaphore(0);
+	    final Semaphore gate = new Semaphore(0);
+
+	    KThread[] chain = new KThread[depth];
+	    for (int i=0; i<depth; i++) {
+		final int link = i;
+		chain[i] = new KThread(new Runnable() {
+		    public void run() {
+			locks[link].acquire();
+			holding.V();
+			if (link == 0) {
+			    gate.P();
+			}
+			else {
+			    locks[link-1].acquire();
+			    locks[link-1].release();
+			}
+			locks[link].release();
+		    }
+		}).setName("link " + i);
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(chain[i], 1);
+		Machine.interrupt().restore(intStatus);
+
+		chain[i].fork();
+		holding.P();
+	    }
+
+	    waiting = false;
+	    KThread high = new KThread(new Runnable() {
+		public void run() {
+		    waiting = true;
+		    locks[depth-1].acquire();
+		    locks[depth-1].release();
+		}
+	    }).setName("high");
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(high, 7);
+	    Machine.interrupt().restore(intStatus);
+
+	    high.fork();
+	    while (!waiting)
+		KThread.yield();
+
+	    gate.V();
+	    high.join();
+	    for (int i=0; i<depth; i++)
+		chain[i].join();
+
+	    return depth;
+	}
+
+	private boolean waiting;
+    }
+
+    private class YieldWorkload extends Workload {
+	YieldWorkload() {
+	    super("yield");
+	}
+
+	long runOnce() {
+	    final long target = (long) threads * yields;
+	    work = new long[threads];
+	    done = 0;
+	    started = false;
+
+	    KThread[] yielders = new KThread[threads];
+	    for (int i=0; i<threads; i++) {
+		final int index = i;
+		yielders[i] = new KThread(new Runnable() {
+		    public void run() {
+			// don't let the first threads forked get ahead
+			while (!started)
+			    KThread.yield();
+
+			while (done < target) {
+			    // one unit of work is one kernel tick
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+
+			    work[index]++;
+			    done++;
+			    KThread.yield();
+			}
+		    }
+		}).setName("yielder " + i);
+		yielders[i].fork();
+	    }
+	    started = true;
+
+	    for (int i=0; i<threads; i++)
+		yielders[i].join();
+
+	    return done;
+	}
+
+	void record(int iteration) {
+	    double sum = 0, squares = 0;
+	    for (int i=0; i<threads; i++) {
+		sum += work[i];
+		squares += (double) work[i] * work[i];
+	    }
+	    fairness[iteration] = sum * sum / (threads * squares);
+	}
+
+	void report() {
+	    SchedulerBenchmark.this.report(name, "fairness", fairness);
+	}
+
+	private long[] work;
+	private long done;
+	private boolean started;
+	private double[] fairness = new double[iterations];
+    }
+
+    private class JoinWorkload extends Workload {
+	JoinWorkload() {
+	    super("join");
+	}
+
+	long runOnce() {
+	    node(tree);
+	    return (2L << tree) - 2;
+	}
+
+	private void node(final int level) {
+	    if (level == 0)
+		return;
+
+	    Runnable child = new Runnable() {
+		public void run() {
+		    node(level - 1);
+		}
+	    };
+
+	    KThread left = new KThread(child).setName("join node");
+	    KThread right = new KThread(child).setName("join node");
+	    left.fork();
+	    right.fork();
+	    left.join();
+	    right.join();
+	}
+    }
+
+    private class PeriodicWorkload extends Workload {
+	PeriodicWorkload() {
+	    super("periodic");
+	}
+
+	long runOnce() {
+	    edf = (ThreadedKernel.scheduler instanceof EDFScheduler) ?
+		(EDFScheduler) ThreadedKernel.scheduler : null;
+	    int jobsBefore = (edf != null) ? edf.getRealTimeJobs() : 0;
+	    int missesBefore = (edf != null) ? edf.getDeadlineMisses() : 0;
+	    missed = 0;
+	    stop = false;
+
+	    KThread[] hogs = new KThread[periods.length];
+	    for (int i=0; i<hogs.length; i++) {
+		hogs[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop)
+			    work(1);
+		    }
+		}).setName("hog " + i);
+		hogs[i].fork();
+	    }
+
+	    KThread[] tasks = new KThread[periods.length];
+	    for (int i=0; i<tasks.length; i++) {
+		final int index = i;
+		tasks[i] = new KThread(new Runnable() {
+		    public void run() {
+			task(periods[index], deadlines[index], costs[index]);
+		    }
+		}).setName("periodic " + i);
+		tasks[i].fork();
+	    }
+
+	    for (int i=0; i<tasks.length; i++)
+		tasks[i].join();
+	    stop = true;
+	    for (int i=0; i<hogs.length; i++)
+		hogs[i].join();
+
+	    long ops = (long) periods.length * jobs;
+	    if (edf != null) {
+		Lib.assertTrue(edf.getRealTimeJobs() - jobsBefore == ops);
+		Lib.assertTrue(edf.getDeadlineMisses() - missesBefore
+			       == missed);
+	    }
+	    return ops;
+	}
+
+	/**
+	 * Run <tt>jobs</tt> jobs of <tt>cost</tt> units of work, one released
+	 * every <tt>period</tt> ticks and due <tt>deadline</tt> ticks after its
+	 * release. A job that overruns its period delays the next release, as
+	 * in <tt>EDFScheduler</tt>.
+	 */
+	private void task(long period, long deadline, int cost) {
+	    KThread thread = KThread.currentThread();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    long release = getTime();
+	    if (edf != null)
+		edf.setPeriod(thread, period, deadline);
+	    Machine.interrupt().restore(intStatus);
+
+	    for (int i=0; i<jobs; i++) {
+		work(cost);
+
+		intStatus = Machine.interrupt().disable();
+		long now = getTime();
+		if (now > release + deadline)
+		    missed++;
+		if (edf != null) {
+		    Lib.assertTrue(edf.getDeadline(thread)
+				   == release + deadline);
+		}
+
+		release = Math.max(release + period, now);
+		if (edf != null)
+		    edf.finishJob();
+		else if (release > now)
+		    ThreadedKernel.alarm.waitUntil(release - now);
+		Lib.assertTrue(getTime() >= release);
+		Machine.interrupt().restore(intStatus);
+	    }
+	}
+
+	/**
+	 * Do <tt>units</tt> units of work, one kernel tick each.
+	 */
+	private void work(int units) {
+	    for (int i=0; i<units; i++) {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+	    }
+	}
+
+	void record(int iteration) {
+	    misses[iteration] = (double) missed / (periods.length * jobs);
+	}
+
+	void report() {
+	    SchedulerBenchmark.this.report(name, "misses", misses);
+	}
+
+	/**
+	 * The period of each periodic thread, the ticks after each release by
+	 * which its job is due, and the work in each job.
+	 */
+	private final long[] periods = { 2000, 3000, 5000 };
+	private final long[] deadlines = { 2000, 3000, 200 };
+	private final int[] costs = { 20, 45, 30 };
+
+	private EDFScheduler edf;
+	private int missed;
+	private boolean stop;
+	private double[] misses = new double[iterations];
+    }
+
+    private String scheduler;
+    private int fork, warmup, iterations;
+    private int threads, rounds, depth, yields, tree, jobs;
+}
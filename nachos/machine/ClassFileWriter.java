@@ -0,0 +1,460 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assembles a Java class file with a constant pool and a few methods. Only
+ * what the processor needs to compile basic blocks is supported: integer
+ * constants, field and method references, local and conditional jumps, and
+ * exception handlers.
+ *
+ * <p>
+ * The class file is written in the version 49 format, which needs no stack
+ * map frames, so jump targets do not have to be annotated with types.
+ */
+final class ClassFileWriter {
+    /**
+     * Allocate a new class file writer for a final class.
+     *
+     * @param	className	the internal name of the class, such as
+     *				<tt>nachos/machine/Example</tt>.
+     * @param	superName	the internal name of its superclass.
+     */
+    ClassFileWriter(String className, String superName) {
+	thisClass = classConstant(className);
+	superClass = classConstant(superName);
+    }
+
+    /**
+     * Return the constant pool index of an integer constant.
+     *
+     * @param	value	the value of the constant.
+     * @return	the index of the constant.
+     */
+    int intConstant(int value) {
+	return constant("I" + value, new byte[] {
+	    3, (byte) (value>>24), (byte) (value>>16), (byte) (value>>8),
+	    (byte) value });
+    }
+
+    /**
+     * Return the constant pool index of a class reference.
+     *
+     * @param	name	the internal name of the class.
+     * @return	the index of the class reference.
+     */
+    int classConstant(String name) {
+	int utf8 = utf8Constant(name);
+	return constant("C" + name, new byte[] {
+	    7, (byte) (utf8>>8), (byte) utf8 });
+    }
+
+    /**
+     * Return the constant pool index of a field reference.
+     *
+     * @param	owner	the internal name of the class declaring the field.
+     * @param	name	the name of the field.
+     * @param	type	the type descriptor of the field.
+     * @return	the index of the field reference.
+     */
+    int fieldConstant(String owner, String name, String type) {
+	return memberConstant(9, owner, name, type);
+    }
+
+    /**
+     * Return the constant pool index of a method reference.
+     *
+     * @param	owner	the internal name of the class declaring the method.
+     * @param	name	the name of the method.
+     * @param	type	the method descriptor.
+     * @return	the index of the method reference.
+     */
+    int methodConstant(String owner, String name, String type) {
+	return memberConstant(10, owner, name, type);
+    }
+
+    private int memberConstant(int tag, String owner, String name,
+			       String type) {
+	int nameAndType = constant("N" + name + " " + type,
+				   pair(12, utf8Constant(name),
+					utf8Constant(type)));
+	return constant(tag + owner + "." + name + " " + type,
+			pair(tag, classConstant(owner), nameAndType));
+    }
+
+    private static byte[] pair(int tag, int first, int second) {
+	return new byte[] { (byte) tag, (byte) (first>>8), (byte) first,
+			    (byte) (second>>8), (byte) second };
+    }
+
+    private int utf8Constant(String value) {
+	Integer index = constants.get("U" + value);
+	if (index != null)
+	    return index.intValue();
+
+	byte[] bytes = value.getBytes();
+	pool.add(new byte[] {
+	    1, (byte) (bytes.length>>8), (byte) bytes.length });
+	pool.add(bytes);
+	constants.put("U" + value, Integer.valueOf(poolCount));
+	return poolCount++;
+    }
+
+    /**
+     * Add a constant to the pool, unless an equal one is already there.
+     *
+     * @param	key	describes the constant, and is unique to it.
+     * @param	entry	the constant as written in the class file.
+     * @return	the index of the constant.
+     */
+    private int constant(String key, byte[] entry) {
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	pool.add(entry);
+	constants.put(key, Integer.valueOf(poolCount));
+	return poolCount++;
+    }
+
+    /**
+     * Start a new method. Its code is appended to the returned object, and
+     * is written out with the rest of the class by <tt>toByteArray()</tt>.
+     *
+     * @param	access	the access flags of the method.
+     * @param	name	the name of the method.
+     * @param	type	the method descriptor.
+     * @param	maxStack	the maximum depth of the operand stack.
+     * @param	maxLocals	the number of local variable slots, including
+     *				<tt>this</tt> and the arguments.
+     * @return	the code of the new method.
+     */
+    Code addMethod(int access, String name, String type, int maxStack,
+		   int maxLocals) {
+	Code code = new Code(access, utf8Constant(name), utf8Constant(type),
+			     maxStack, maxLocals);
+	methods.add(code);
+	return code;
+    }
+
+    /**
+     * Return the class file.
+     *
+     * @return	the bytes of the class file.
+     */
+    byte[] toByteArray() {
+	int codeAttribute = utf8Constant("Code");
+
+	Buffer out = new Buffer();
+	out.u4(0xCAFEBABE);
+	out.u2(0);
+	out.u2(49);
+
+	out.u2(poolCount);
+	for (int i=0; i<pool.size(); i++)
+	    out.bytes(pool.get(i), pool.get(i).length);
+
+	out.u2(accFinal | accSuper);
+	out.u2(thisClass);
+	out.u2(superClass);
+	out.u2(0);
+	out.u2(0);
+
+	out.u2(methods.size());
+	for (int i=0; i<methods.size(); i++)
+	    methods.get(i).write(out, codeAttribute);
+
+	out.u2(0);
+
+	byte[] result = new byte[out.length];
+	System.arraycopy(out.data, 0, result, 0, out.length);
+	return result;
+    }
+
+    /**
+     * A position in the code of a method, which jumps and exception handlers
+     * can refer to before it is marked.
+     */
+    static final class Label {
+	private int position = -1;
+    }
+
+    /**
+     * The code of one method, appended to an instruction at a time.
+     */
+    final class Code {
+	private Code(int access, int name, int type, int maxStack,
+		     int maxLocals) {
+	    this.access = access;
+	    this.name = name;
+	    this.type = type;
+	    this.maxStack = maxStack;
+	    this.maxLocals = maxLocals;
+	}
+
+	/**
+	 * Append an instruction that has no operands.
+	 *
+	 * @param	opcode	the opcode.
+	 */
+	void op(int opcode) {
+	    code.u1(opcode);
+	}
+
+	/**
+	 * Append a load from or store to a local variable.
+	 *
+	 * @param	opcode	<tt>ILOAD</tt>, <tt>ISTORE</tt>,
+	 *			<tt>ALOAD</tt> or <tt>ASTORE</tt>.
+	 * @param	index	the local variable, less than 256.
+	 */
+	void local(int opcode, int index) {
+	    Lib.assertTrue(index >= 0 && index < 256);
+
+	    if (index <= 3) {
+		// iload_0 and friends follow each opcode's group of four
+		int base;
+		switch (opcode) {
+		case ILOAD:	base = 0x1A; break;
+		case ALOAD:	base = 0x2A; break;
+		case ISTORE:	base = 0x3B; break;
+		default:	base = 0x4B; break;
+		}
+		code.u1(base + index);
+	    }
+	    else {
+		code.u1(opcode);
+		code.u1(index);
+	    }
+	}
+
+	/**
+	 * Append the shortest instruction that pushes an integer constant.
+	 *
+	 * @param	value	the constant.
+	 */
+	void pushInt(int value) {
+	    if (value >= -1 && value <= 5) {
+		code.u1(ICONST_0 + value);
+	    }
+	    else if (value == (byte) value) {
+		code.u1(BIPUSH);
+		code.u1(value);
+	    }
+	    else if (value == (short) value) {
+		code.u1(SIPUSH);
+		code.u2(value);
+	    }
+	    else {
+		code.u1(LDC_W);
+		code.u2(intConstant(value));
+	    }
+	}
+
+	/**
+	 * Append a field access.
+	 *
+	 * @param	opcode	<tt>GETFIELD</tt> or <tt>PUTFIELD</tt>.
+	 * @param	owner	the internal name of the class declaring the
+	 *			field.
+	 * @param	name	the name of the field.
+	 * @param	type	the type descriptor of the field.
+	 */
+	void field(int opcode, String owner, String name, String type) {
+	    code.u1(opcode);
+	    code.u2(fieldConstant(owner, name, type));
+	}
+
+	/**
+	 * Append a method invocation.
+	 *
+	 * @param	opcode	<tt>INVOKEVIRTUAL</tt> or
+	 *			<tt>INVOKESPECIAL</tt>.
+	 * @param	owner	the internal name of the class declaring the
+	 *			method.
+	 * @param	name	the name of the method.
+	 * @param	type	the method descriptor.
+	 */
+	void invoke(int opcode, String owner, String name, String type) {
+	    code.u1(opcode);
+	    code.u2(methodConstant(owner, name, type));
+	}
+
+	/**
+	 * Append a jump to a label, which need not be marked yet.
+	 *
+	 * @param	opcode	<tt>GOTO</tt> or a conditional jump.
+	 * @param	target	where to jump to.
+	 */
+	void jump(int opcode, Label target) {
+	    jumps.add(new int[] { code.length, code.length+1 });
+	    jumpTargets.add(target);
+	    code.u1(opcode);
+	    code.u2(0);
+	}
+
+	/**
+	 * Mark the current position with a label.
+	 *
+	 * @param	label	the label to mark.
+	 */
+	void mark(Label label) {
+	    Lib.assertTrue(label.position < 0);
+	    label.position = code.length;
+	}
+
+	/**
+	 * Add an exception handler.
+	 *
+	 * @param	start	the first instruction the handler covers.
+	 * @param	end	the instruction after the last one it covers.
+	 * @param	handler	the start of the handler.
+	 * @param	type	the internal name of the exception class caught.
+	 */
+	void handler(Label start, Label end, Label handler, String type) {
+	    handlers.add(new Label[] { start, end, handler });
+	    handlerTypes.add(Integer.valueOf(classConstant(type)));
+	}
+
+	/**
+	 * Return the number of bytes of code appended so far.
+	 *
+	 * @return	the length of the code.
+	 */
+	int length() {
+	    return code.length;
+	}
+
+	private void write(Buffer out, int codeAttribute) {
+	    for (int i=0; i<jumps.size(); i++) {
+		int[] jump = jumps.get(i);
+		int target = jumpTargets.get(i).position;
+		Lib.assertTrue(target >= 0);
+
+		int offset = target - jump[0];
+		code.data[jump[1]] = (byte) (offset>>8);
+		code.data[jump[1]+1] = (byte) offset;
+	    }
+
+	    out.u2(access);
+	    out.u2(name);
+	    out.u2(type);
+	    out.u2(1);
+
+	    out.u2(codeAttribute);
+	    out.u4(12 + code.length + handlers.size()*8);
+	    out.u2(maxStack);
+	    out.u2(maxLocals);
+	    out.u4(code.length);
+	    out.bytes(code.data, code.length);
+	    out.u2(handlers.size());
+	    for (int i=0; i<handlers.size(); i++) {
+		Label[] range = handlers.get(i);
+		out.u2(range[0].position);
+		out.u2(range[1].position);
+		out.u2(range[2].position);
+		out.u2(handlerTypes.get(i).intValue());
+	    }
+	    out.u2(0);
+	}
+
+	private int access, name, type, maxStack, maxLocals;
+	private Buffer code = new Buffer();
+	/** The position of each jump's opcode and of its offset. */
+	private ArrayList<int[]> jumps = new ArrayList<int[]>();
+	private ArrayList<Label> jumpTargets = new ArrayList<Label>();
+	private ArrayList<Label[]> handlers = new ArrayList<Label[]>();
+	private ArrayList<Integer> handlerTypes = new ArrayList<Integer>();
+    }
+
+    /**
+     * A growable array of bytes, written in big-endian order.
+     */
+    private static class Buffer {
+	void u1(int value) {
+	    if (length == data.length) {
+		byte[] bigger = new byte[data.length*2];
+		System.arraycopy(data, 0, bigger, 0, length);
+		data = bigger;
+	    }
+	    data[length++] = (byte) value;
+	}
+
+	void u2(int value) {
+	    u1(value>>8);
+	    u1(value);
+	}
+
+	void u4(int value) {
+	    u2(value>>16);
+	    u2(value);
+	}
+
+	void bytes(byte[] values, int count) {
+	    for (int i=0; i<count; i++)
+		u1(values[i]);
+	}
+
+	byte[] data = new byte[256];
+	int length = 0;
+    }
+
+    private int thisClass, superClass;
+
+    /** The constant pool entries, in order; entry 0 is implicit. */
+    private ArrayList<byte[]> pool = new ArrayList<byte[]>();
+    private int poolCount = 1;
+    /** Maps a description of each constant to its index in the pool. */
+    private HashMap<String,Integer> constants = new HashMap<String,Integer>();
+
+    private ArrayList<Code> methods = new ArrayList<Code>();
+
+    static final int accPublic = 0x0001;
+    static final int accFinal = 0x0010;
+    static final int accSuper = 0x0020;
+
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2E;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3A;
+    static final int IASTORE = 0x4F;
+    static final int POP = 0x57;
+    static final int DUP2 = 0x5C;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int LSUB = 0x65;
+    static final int LMUL = 0x69;
+    static final int ISHL = 0x78;
+    static final int LSHL = 0x79;
+    static final int ISHR = 0x7A;
+    static final int LSHR = 0x7B;
+    static final int LUSHR = 0x7D;
+    static final int IAND = 0x7E;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFLT = 0x9B;
+    static final int IFGE = 0x9C;
+    static final int IFGT = 0x9D;
+    static final int IFLE = 0x9E;
+    static final int IF_ICMPEQ = 0x9F;
+    static final int IF_ICMPNE = 0xA0;
+    static final int GOTO = 0xA7;
+    static final int IRETURN = 0xAC;
+    static final int RETURN = 0xB1;
+    static final int GETFIELD = 0xB4;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int ATHROW = 0xBF;
+}
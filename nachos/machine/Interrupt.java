@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +38,12 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts due within the next <tt>wheelSize</tt> ticks are kept in
+ * a timing wheel, one slot per tick; later ones wait in a heap until the
+ * wheel reaches them. Interrupts due at the same time are invoked in the
+ * order they were scheduled.
  */
 public final class Interrupt {
     /**
@@ -53,7 +59,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +125,48 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time straight to the next pending interrupt, and
+     * invoke the handlers that are then due. The skipped time is charged as
+     * kernel time. Does nothing if no interrupt is pending. Must be called
+     * with interrupts disabled, typically by an idle thread that has nothing
+     * else to run.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (nextTime == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	if (nextTime > stats.totalTicks) {
+	    if (Lib.test(dbgInt))
+		System.out.println("== Idle until " + nextTime + " ==");
+	    
+	    stats.kernelTicks += nextTime - stats.totalTicks;
+	    stats.totalTicks = nextTime;
+	}
+
+	checkIfDue();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	// the wheel only has to cover time from now, or from the earliest
+	// interrupt if some are still waiting to be invoked
+	long start = Math.min(privilege.stats.totalTicks, nextTime);
+	if (start > wheelStart)
+	    advanceWheel(start);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +189,27 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private int userTicksUntilDue() {
+	// while tracing, every tick is printed, so don't let any be batched
+	if (Lib.test(dbgInt))
+	    return 1;
+
+	if (nextTime == Long.MAX_VALUE)
+	    return Integer.MAX_VALUE;
+
+	long until = nextTime - privilege.stats.totalTicks;
+	long ticks = (until + Stats.UserTick - 1) / Stats.UserTick;
+
+	return (int) Math.max(1, Math.min(ticks, Integer.MAX_VALUE));
+    }
+
+    private void chargeUserTicks(int ticks) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) ticks * Stats.UserTick;
+	stats.totalTicks += (long) ticks * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,37 +218,206 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (nextTime > time)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
-	    return;
-
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextTime <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + next.type);
+
+	    // the node can be reused by anything the handler schedules
+	    Runnable handler = next.handler;
+	    free(next);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Return a pending interrupt node, reusing a free one if possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur == null)
+	    toOccur = new PendingInterrupt();
+	else
+	    freeList = toOccur.next;
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.next = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a node that is no longer pending to the free list.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.next = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add a pending interrupt due no earlier than <tt>wheelStart</tt>.
+     */
+    private void add(PendingInterrupt toOccur) {
+	Lib.assertTrue(toOccur.time >= wheelStart);
+	
+	if (toOccur.time - wheelStart < wheelSize) {
+	    // interrupts are added in id order, so appending keeps ties ordered
+	    int slot = (int) (toOccur.time & wheelMask);
+	    if (slotTails[slot] == null)
+		slotHeads[slot] = toOccur;
+	    else
+		slotTails[slot].next = toOccur;
+	    slotTails[slot] = toOccur;
+	    
+	    occupied[slot >>> 6] |= 1L << slot;
+	    numInWheel++;
+	}
+	else {
+	    if (numOverflow == overflow.length) {
+		PendingInterrupt[] larger = new PendingInterrupt[numOverflow*2];
+		System.arraycopy(overflow, 0, larger, 0, numOverflow);
+		overflow = larger;
+	    }
+
+	    // sift up
+	    int i = numOverflow++;
+	    while (i > 0 && toOccur.compareTo(overflow[(i-1)/2]) < 0) {
+		overflow[i] = overflow[(i-1)/2];
+		i = (i-1)/2;
+	    }
+	    overflow[i] = toOccur;
+	}
+
+	if (toOccur.time < nextTime)
+	    nextTime = toOccur.time;
+    }
+
+    /**
+     * Remove and return the pending interrupt due at <tt>nextTime</tt> with
+     * the lowest id.
+     */
+    private PendingInterrupt removeFirst() {
+	advanceWheel(nextTime);
+
+	int slot = (int) (nextTime & wheelMask);
+	PendingInterrupt first = slotHeads[slot];
+	Lib.assertTrue(first != null && first.time == nextTime);
+
+	slotHeads[slot] = first.next;
+	if (first.next == null) {
+	    slotTails[slot] = null;
+	    occupied[slot >>> 6] &= ~(1L << slot);
+	}
+	numInWheel--;
+	
+	nextTime = findNextTime();
+
+	return first;
+    }
+
+    /**
+     * Move the start of the wheel forward to <i>time</i>, which must be no
+     * later than any pending interrupt. Interrupts in the heap that now fall
+     * within the wheel are moved into it, before anything else can be added
+     * to their slots.
+     */
+    private void advanceWheel(long time) {
+	wheelStart = time;
+
+	while (numOverflow > 0 && overflow[0].time - wheelStart < wheelSize) {
+	    PendingInterrupt toOccur = overflow[0];
+
+	    // sift down the last element from the root
+	    PendingInterrupt last = overflow[--numOverflow];
+	    overflow[numOverflow] = null;
+	    int i = 0;
+	    while (i*2+1 < numOverflow) {
+		int child = i*2+1;
+		if (child+1 < numOverflow &&
+		    overflow[child+1].compareTo(overflow[child]) < 0)
+		    child++;
+		if (last.compareTo(overflow[child]) <= 0)
+		    break;
+		overflow[i] = overflow[child];
+		i = child;
+	    }
+	    if (numOverflow > 0)
+		overflow[i] = last;
+
+	    add(toOccur);
+	}
+    }
+
+    /**
+     * Return the time of the earliest pending interrupt, or
+     * <tt>Long.MAX_VALUE</tt> if there are none.
+     */
+    private long findNextTime() {
+	if (numInWheel > 0) {
+	    // the wheel covers one lap from wheelStart, so the first occupied
+	    // slot from there on holds the earliest interrupts
+	    int start = (int) (wheelStart & wheelMask);
+	    int numWords = occupied.length;
+
+	    for (int i=0; i<=numWords; i++) {
+		int word = ((start >>> 6) + i) % numWords;
+		long bits = occupied[word];
+
+		if (i == 0)
+		    bits &= -1L << start;
+		else if (i == numWords)
+		    bits &= ~(-1L << start);
+
+		if (bits != 0)
+		    return slotHeads[word*64 +
+				     Long.numberOfTrailingZeros(bits)].time;
+	    }
+
+	    Lib.assertNotReached();
+	}
+
+	if (numOverflow > 0)
+	    return overflow[0].time;
+
+	return Long.MAX_VALUE;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
+	ArrayList<PendingInterrupt> pending = new ArrayList<PendingInterrupt>();
+	for (int slot=0; slot<wheelSize; slot++) {
+	    for (PendingInterrupt toOccur = slotHeads[slot]; toOccur != null;
+		 toOccur = toOccur.next)
+		pending.add(toOccur);
+	}
+	for (int i=0; i<numOverflow; i++)
+	    pending.add(overflow[i]);
+	Collections.sort(pending);
+
 	for (Iterator i=pending.iterator(); i.hasNext(); ) {
 	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
 	    System.out.println("  " + toOccur.type +
@@ -201,16 +427,8 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
 
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
@@ -230,6 +448,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next interrupt in the same wheel slot, or on the free list. */
+	private PendingInterrupt next;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +457,29 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /** Number of slots in the wheel, one per tick; a power of two. */
+    private static final int wheelSize = 1024;
+    private static final int wheelMask = wheelSize - 1;
+
+    /** Interrupts due at each time, in id order, by time modulo wheelSize. */
+    private PendingInterrupt[] slotHeads = new PendingInterrupt[wheelSize];
+    private PendingInterrupt[] slotTails = new PendingInterrupt[wheelSize];
+    /** One bit per slot, set if the slot is not empty. */
+    private long[] occupied = new long[wheelSize/64];
+    private int numInWheel = 0;
+    /**
+     * The wheel holds interrupts due in [wheelStart, wheelStart+wheelSize);
+     * no interrupt is due before wheelStart.
+     */
+    private long wheelStart = 0;
+    /** Interrupts due after the wheel, as a binary heap. */
+    private PendingInterrupt[] overflow = new PendingInterrupt[16];
+    private int numOverflow = 0;
+    /** Time of the earliest pending interrupt, or Long.MAX_VALUE. */
+    private long nextTime = Long.MAX_VALUE;
+    /** Nodes no longer pending, linked through <tt>next</tt>. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +491,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void chargeUserTicks(int ticks) {
+	    Interrupt.this.chargeUserTicks(ticks);
+	}
     }
 }
@@ -92,14 +92,27 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and anything the halt handler prints, and terminate
+     * Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (haltHandler != null)
+	    haltHandler.run();
 	terminate();
     }
 
+    /**
+     * Set the handler that <tt>halt()</tt> calls after printing the stats,
+     * through which the kernel can print reports of its own.
+     *
+     * @param	handler	the halt handler.
+     */
+    public static void setHaltHandler(Runnable handler) {
+	haltHandler = handler;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -407,6 +420,7 @@ public final class Machine {
     private static Privilege privilege;
 
     private static String[] args = null;
+    private static Runnable haltHandler = null;
 
     private static Stats stats = new Stats();
 
@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -42,12 +49,44 @@ public final class Processor {
 	
 	this.numPhysPages = numPhysPages;
 
+	String mode = Config.getString("Processor.executionMode", "interpret");
+	Lib.assertTrue(mode.equals("interpret") || mode.equals("block"),
+		       "bad value for Processor.executionMode: " + mode);
+	usingBlocks = mode.equals("block");
+	hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold", 64);
+	if (usingBlocks &&
+	    Config.getBoolean("Processor.compileHotBlocks", true))
+	    findDefineHiddenClass();
+
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new DecodedInstruction[mainMemory.length / 4];
+	if (usingBlocks) {
+	    blockCache = new BasicBlock[mainMemory.length / 4];
+	    blockPages = new boolean[numPhysPages];
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+			   "bad TLB size or associativity");
+	    tlbSets = tlbSize / tlbWays;
+
+	    String policy = Config.getString("Processor.tlbReplacement",
+					     "random");
+	    if (policy.equals("random"))
+		tlbReplacement = new RandomReplacement();
+	    else if (policy.equals("fifo"))
+		tlbReplacement = new FIFOReplacement();
+	    else if (policy.equals("plru"))
+		tlbReplacement = new PseudoLRUReplacement();
+	    else
+		Lib.assertNotReached("bad value for Processor.tlbReplacement: "
+				     + policy);
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -83,6 +122,12 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * If <tt>Processor.executionMode</tt> is <tt>block</tt>, instructions are
+     * run a basic block at a time (see <tt>runBlocks()</tt>). Otherwise, or
+     * if any of the processor debug flags are set, each instruction is
+     * fetched, decoded and executed individually.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,6 +136,10 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (usingBlocks && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    runBlocks();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -101,8 +150,197 @@ public final class Processor {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    userTick();
+	}
+    }
+
+    /**
+     * Advance the simulated time by one user tick. Ticks are only charged
+     * one at a time when an interrupt could be due; until then they are
+     * counted in <tt>deferredTicks</tt> and charged in bulk.
+     */
+    private void userTick() {
+	if (--ticksUntilDue > 0) {
+	    deferredTicks++;
+	    return;
+	}
+
+	chargeDeferredTicks();
+	privilege.interrupt.tick(false);
+
+	ticksUntilDue = privilege.interrupt.userTicksUntilDue();
+    }
+
+    /**
+     * Charge the user ticks deferred by <tt>userTick()</tt>. Must be called
+     * before any kernel code can run, since the kernel may look at the time
+     * or schedule interrupts; the next user tick then asks the interrupt
+     * controller again how long it may defer.
+     */
+    private void chargeDeferredTicks() {
+	if (deferredTicks > 0) {
+	    privilege.interrupt.chargeUserTicks(deferredTicks);
+	    deferredTicks = 0;
+	}
+
+	ticksUntilDue = 0;
+    }
+
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * <p>
+     * Only the first instruction of a block is fetched and translated; the
+     * rest run straight from the block's precompiled operations. Simulated
+     * time still advances after every instruction, exactly as in
+     * <tt>run()</tt>, and an exception ends the block with the registers in
+     * the same state the interpreter would leave them in. The block is also
+     * abandoned as soon as control leaves it (a taken branch, whose delay
+     * slot starts the next block), an interrupt handler runs, or a store hits
+     * a page holding compiled code.
+     *
+     * <p>
+     * Blocks count how often they are entered. Once a block is hot, it
+     * remembers the blocks it exits to, and while nothing has happened that
+     * could change the address mapping or the code (see
+     * <tt>blockBreaks</tt>), the next block is taken straight from that link
+     * instead of being looked up again. Its first instruction is still
+     * translated, so page use and TLB replacement match the interpreter.
+     *
+     * <p>
+     * A hot block is also compiled to JVM bytecode (see
+     * <tt>BlockCompiler</tt>), unless <tt>Processor.compileHotBlocks</tt> is
+     * <tt>false</tt>. The compiled code is only run when no interrupt can be
+     * due before it ends and the block is not being entered in a branch delay
+     * slot; otherwise, and for any instructions it does not cover, the
+     * block's operations are run as before.
+     */
+    private void runBlocks() {
+	BasicBlock last = null;
+	
+	while (true) {
+	    int vaddr = registers[regPC];
+	    BasicBlock block = null;
+
+	    if (last != null)
+		block = last.successor(vaddr);
+
+	    try {
+		if (block != null) {
+		    // still fetch the first instruction, so that its page is
+		    // marked used and the TLB replacement policy sees it
+		    translate(vaddr, 4, false, true);
+		}
+		else {
+		    block = findBlock(vaddr);
+
+		    if (last != null && last.entries >= hotBlockThreshold)
+			last.link(vaddr, block);
+		}
+	    }
+	    catch (MipsException e) {
+		handleBlockException(e);
+		last = null;
+		continue;
+	    }
+
+	    block.entries++;
+	    last = block;
+
+	    if (block.entries == hotBlockThreshold && defineHiddenClass != null)
+		block.compileCode();
+	    
+	    int breaks = blockBreaks;
+	    int i = 0;
+
+	    if (block.code != null && ticksUntilDue > block.codeLength &&
+		registers[regNextPC] == vaddr+4) {
+		try {
+		    i = block.code.run(this);
+		}
+		catch (MipsException e) {
+		    handleBlockException(e);
+		    continue;
+		}
+
+		vaddr += i*4;
+		if (blockBreaks != breaks || registers[regPC] != vaddr)
+		    continue;
+	    }
+
+	    for (; i<block.ops.length; i++) {
+		try {
+		    block.ops[i].execute();
+		}
+		catch (MipsException e) {
+		    handleBlockException(e);
+		    break;
+		}
+
+		userTick();
+
+		vaddr += 4;
+		if (blockBreaks != breaks || registers[regPC] != vaddr)
+		    break;
+	    }
+	}
+    }
+
+    /**
+     * Handle an exception raised while running basic blocks, and advance
+     * time as <tt>run()</tt> does. The kernel may switch processes or edit
+     * the address mapping while it handles the exception, so block links are
+     * invalidated on the way in and again on the way out.
+     *
+     * @param	e	the exception.
+     */
+    private void handleBlockException(MipsException e) {
+	blockBreaks++;
+	e.handle();
+	blockBreaks++;
+	
+	userTick();
+    }
+
+    /**
+     * Return the basic block starting at the specified virtual address,
+     * translating it as an instruction fetch would. A cached block is reused
+     * if the instructions it was compiled from are still in memory.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return	the basic block starting at <i>vaddr</i>.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private BasicBlock findBlock(int vaddr) throws MipsException {
+	int paddr = translate(vaddr, 4, false, true);
+
+	BasicBlock block = blockCache[paddr/4];
+	if (block == null || !block.isCurrent()) {
+	    block = new BasicBlock(paddr);
+	    blockCache[paddr/4] = block;
+	    blockPages[paddr/pageSize] = true;
+	}
+
+	return block;
+    }
+
+    /**
+     * Return the decoding of the instruction word at the specified physical
+     * address, decoding it only if it has changed since it was last decoded.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeWord(int paddr) {
+	int value = Lib.bytesToInt(mainMemory, paddr);
+
+	DecodedInstruction decoded = decodeCache[paddr/4];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    decodeCache[paddr/4] = decoded;
 	}
+
+	return decoded;
     }
 
     /**
@@ -175,6 +413,8 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushMicroTLB();
+	blockBreaks++;
     }
 
     /**
@@ -201,12 +441,50 @@ public final class Processor {
 	return new TranslationEntry(translations[number]);
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this equals <tt>getTLBSize()</tt>, which is
+     * the default.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Choose the TLB entry that a translation for the specified virtual page
+     * should be written to: an invalid entry in the page's set if there is
+     * one, otherwise the entry picked by the replacement policy set by
+     * <tt>Processor.tlbReplacement</tt> (<tt>random</tt>, <tt>fifo</tt> or
+     * <tt>plru</tt>).
+     *
+     * @param	vpn	the virtual page about to be loaded into the TLB.
+     * @return	the index of the entry to replace.
+     */
+    public int chooseTLBEntry(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	int first = tlbSetOf(vpn) * tlbWays;
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	return first + tlbReplacement.victim(first);
+    }
+
     /**
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Entry <i>number</i> belongs to set <tt>number / getTLBAssociativity()
+     * </tt>, and a virtual page can only be found in the set selected by its
+     * page number, so the entry should come from <tt>chooseTLBEntry()</tt>.
+     * With the default, fully associative TLB, the location of an entry
+     * within the TLB does not affect anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -216,6 +494,9 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	tlbReplacement.filled(number);
+	flushMicroTLB();
+	blockBreaks++;
     }
 
     /**
@@ -289,11 +570,27 @@ public final class Processor {
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	fetching	<tt>true</tt> if the memory reference is an
+     *				instruction fetch.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
+    private int translate(int vaddr, int size, boolean writing,
+			  boolean fetching) throws MipsException {
+	// fast path: same page as the last reference of the same kind
+	if (!fetching) {
+	    int paddr = translateData(vaddr, size, writing);
+	    if (paddr >= 0)
+		return paddr;
+	}
+	else if ((vaddr & (size-1)) == 0 &&
+		 pageFromAddress(vaddr) == fetchVPN) {
+	    fetchEntry.used = true;
+	    if (fetchTLBIndex >= 0)
+		tlbReplacement.touch(fetchTLBIndex);
+	    return fetchBase + offsetFromAddress(vaddr);
+	}
+	
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -309,6 +606,7 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	int tlbIndex = -1;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
@@ -322,11 +620,14 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in the vpn's set
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    int first = tlbSetOf(vpn) * tlbWays;
+	    for (int i=first; i<first+tlbWays; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
+		    tlbIndex = i;
+		    tlbReplacement.touch(i);
 		    break;
 		}
 	    }
@@ -358,10 +659,78 @@ public final class Processor {
 	int paddr = (ppn*pageSize) + offset;
 
 	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	else {
+	    // only policies that track use need to hear about fast-path hits
+	    if (tlbIndex >= 0 && !tlbReplacement.tracksUse())
+		tlbIndex = -1;
+	    
+	    if (fetching) {
+		fetchVPN = vpn;
+		fetchEntry = entry;
+		fetchBase = ppn*pageSize;
+		fetchTLBIndex = tlbIndex;
+	    }
+	    else {
+		dataVPN = vpn;
+		dataEntry = entry;
+		dataBase = ppn*pageSize;
+		dataTLBIndex = tlbIndex;
+	    }
+	}
+	
 	return paddr;
     }
 
+    /**
+     * The fast path of <tt>translate()</tt> for loads and stores: translate
+     * an aligned address on the same page as the last load or store. Small
+     * enough for HotSpot to inline into compiled blocks.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return	the physical address, or -1 if the slow path must be taken.
+     */
+    private int translateData(int vaddr, int size, boolean writing) {
+	// in block mode, the instruction making this reference was not
+	// fetched, but the replacement policy must see its fetch first
+	if (usingBlocks && fetchTLBIndex >= 0)
+	    tlbReplacement.touch(fetchTLBIndex);
+
+	if ((vaddr & (size-1)) != 0 || pageFromAddress(vaddr) != dataVPN ||
+	    (writing && dataEntry.readOnly))
+	    return -1;
+
+	dataEntry.used = true;
+	if (dataTLBIndex >= 0)
+	    tlbReplacement.touch(dataTLBIndex);
+	if (writing)
+	    dataEntry.dirty = true;
+	return dataBase + offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Forget the pages remembered by the fast path in <tt>translate()</tt>.
+     * Must be called whenever the kernel may change a translation: the
+     * remembered entries are only valid while user code runs uninterrupted.
+     */
+    private void flushMicroTLB() {
+	fetchVPN = dataVPN = -1;
+	fetchEntry = dataEntry = null;
+	fetchTLBIndex = dataTLBIndex = -1;
+    }
+
+    /**
+     * Return the TLB set a virtual page maps to.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set index.
+     */
+    private int tlbSetOf(int vpn) {
+	return vpn % tlbSets;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,7 +747,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false, false),
 				   size);
 
 	if (Lib.test(dbgProcessor))
@@ -405,9 +774,142 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true, false);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// compiled code may have just been overwritten
+	if (blockPages != null && blockPages[paddr/pageSize])
+	    blockBreaks++;
+    }
+
+    /**
+     * Read memory for compiled code. Same as <tt>readMem()</tt>, but the
+     * common case is small enough to be inlined.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int compiledRead(int vaddr, int size) throws MipsException {
+	int paddr = translateData(vaddr, size, false);
+	if (paddr < 0)
+	    return readMem(vaddr, size);
+
+	return Lib.bytesToInt(mainMemory, paddr, size);
+    }
+
+    /**
+     * Write memory for compiled code. Same as <tt>writeMem()</tt>, but the
+     * common case is small enough to be inlined.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void compiledWrite(int vaddr, int size, int value)
+	throws MipsException {
+	int paddr = translateData(vaddr, size, true);
+	if (paddr < 0) {
+	    writeMem(vaddr, size, value);
+	    return;
+	}
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	if (blockPages[paddr/pageSize])
+	    blockBreaks++;
+    }
+
+    /**
+     * Called by compiled code when it stops, after writing back the
+     * registers it changed. Advance the PC past the instructions that ran,
+     * leave the delayed load of the last one in progress, and count their
+     * ticks as <tt>userTick()</tt> would have.
+     *
+     * @param	count	the number of instructions that ran.
+     * @param	nextPC	the new value of the nextPC register.
+     * @param	loadTarget	the target of the delayed load in progress, or
+     *				0 if there is none.
+     * @param	loadValue	the value it loads.
+     */
+    private void compiledExit(int count, int nextPC, int loadTarget,
+			      int loadValue) {
+	registers[regPC] += count*4;
+	registers[regNextPC] = nextPC;
+	delayedLoad(loadTarget, loadValue, 0xFFFFFFFF);
+
+	deferredTicks += count;
+	ticksUntilDue -= count;
+    }
+
+    /**
+     * Look up <tt>Lookup.defineHiddenClass()</tt>, which only exists in Java
+     * 15 and later. Without it, hot blocks are not compiled.
+     *
+     * <p>
+     * It is called through a method handle rather than by reflection, since
+     * reflection eventually generates accessors with their own class loader,
+     * which the security manager forbids.
+     */
+    private void findDefineHiddenClass() {
+	try {
+	    Class<?> option = Class.forName(
+		"java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    Object options = Array.newInstance(option, 1);
+	    Array.set(options, 0, option.getField("NESTMATE").get(null));
+
+	    MethodType type =
+		MethodType.methodType(MethodHandles.Lookup.class, byte[].class,
+				      boolean.class, options.getClass());
+	    defineHiddenClass = MethodHandles.publicLookup()
+		.findVirtual(MethodHandles.Lookup.class, "defineHiddenClass",
+			     type)
+		.asFixedArity();
+	    hiddenClassOptions = options;
+	}
+	catch (Exception e) {
+	    defineHiddenClass = null;
+	}
+    }
+
+    /**
+     * Load a compiled block as a hidden class in this processor's nest, so
+     * that it can use the processor's private fields and methods. The class
+     * can be unloaded once the block is no longer referenced.
+     *
+     * @param	classFile	the class file generated for the block.
+     * @return	an instance of the class, or <tt>null</tt> if it could not be
+     *		loaded.
+     */
+    private CompiledBlock defineCompiledBlock(final byte[] classFile) {
+	final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	PrivilegedAction<CompiledBlock> action =
+	    new PrivilegedAction<CompiledBlock>() {
+		public CompiledBlock run() {
+		    try {
+			MethodHandles.Lookup hidden = (MethodHandles.Lookup)
+			    defineHiddenClass.invokeWithArguments(
+				lookup, classFile, Boolean.FALSE,
+				hiddenClassOptions);
+			return (CompiledBlock) hidden.findConstructor(
+			    hidden.lookupClass(),
+			    MethodType.methodType(void.class))
+			    .invokeWithArguments();
+		    }
+		    catch (Throwable e) {
+			Lib.debug(dbgProcessor,
+				  "could not load compiled block: " + e);
+			return null;
+		    }
+		}
+	    };
+
+	return (CompiledBlock) privilege.doPrivileged(action);
     }
 
     /**
@@ -541,6 +1043,10 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries per set, and the number of sets. */
+    private int tlbWays, tlbSets;
+    /** Chooses the entry a TLB refill replaces. */
+    private TLBReplacement tlbReplacement;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -556,6 +1062,75 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Decoded instructions, indexed by physical word address. An entry is
+     * only used if the word it was decoded from is still in memory at that
+     * address, so stores by the processor and writes by the kernel through
+     * <tt>getMemory()</tt> both invalidate it implicitly.
+     */
+    private DecodedInstruction[] decodeCache;
+
+    /**
+     * The page of the last instruction fetch, its entry, and the physical
+     * address of the start of the page; <tt>fetchVPN</tt> is -1 if there is
+     * none. Only filled in when not tracing, so traces stay complete.
+     */
+    private int fetchVPN = -1, fetchBase;
+    private TranslationEntry fetchEntry;
+    /**
+     * The TLB index of <tt>fetchEntry</tt> if the replacement policy tracks
+     * use, otherwise -1.
+     */
+    private int fetchTLBIndex = -1;
+    /** The same for the last load or store. */
+    private int dataVPN = -1, dataBase;
+    private TranslationEntry dataEntry;
+    private int dataTLBIndex = -1;
+
+    /** User ticks that have elapsed but not yet been charged. */
+    private int deferredTicks = 0;
+    /**
+     * Number of user ticks until an interrupt may be due; 0 or less if the
+     * interrupt controller must be asked.
+     */
+    private int ticksUntilDue = 0;
+
+    /** <tt>true</tt> if executing a basic block at a time. */
+    private boolean usingBlocks;
+    /** Basic blocks, indexed by the physical address of their first word. */
+    private BasicBlock[] blockCache;
+    /** Physical pages holding at least one basic block. */
+    private boolean[] blockPages;
+    /**
+     * Incremented whenever the basic block being executed, or a link between
+     * blocks, may no longer be valid: an interrupt handler is about to run,
+     * the kernel is handling an exception, the address mapping was replaced,
+     * or a store hit one of <tt>blockPages</tt>.
+     */
+    private int blockBreaks = 0;
+    /**
+     * Number of entries after which a basic block is compiled and links to
+     * its successors.
+     */
+    private int hotBlockThreshold;
+    /**
+     * <tt>Lookup.defineHiddenClass()</tt>, or <tt>null</tt> if hot blocks are
+     * not compiled, and the options it is passed.
+     */
+    private MethodHandle defineHiddenClass = null;
+    private Object hiddenClassOptions;
+    /** The most instructions of a block that are compiled. */
+    private static final int maxCompiledLength = 64;
+    /**
+     * The size, in bytes, of the largest compiled method that is kept, since
+     * HotSpot does not compile larger methods itself.
+     */
+    private static final int maxCompiledCodeLength = 8000;
+    /** Internal class names used in compiled code. */
+    private static final String processorName = "nachos/machine/Processor";
+    private static final String compiledBlockName =
+	processorName + "$CompiledBlock";
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
@@ -566,6 +1141,8 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    flushMicroTLB();
+	    blockBreaks++;
 	}
     }
 
@@ -584,6 +1161,9 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    chargeDeferredTicks();
+	    flushMicroTLB();
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -616,6 +1196,20 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an already fetched instruction. Used by basic blocks for the
+	 * operations they do not compile.
+	 *
+	 * @param	decoded	the instruction to execute.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1220,52 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    decoded = decodeWord(translate(registers[regPC], 4, false, true));
+	    value = decoded.value;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1620,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1632,1296 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A TLB replacement policy. Entries are identified by their index in the
+     * TLB; a set is identified by the index of its first entry.
+     */
+    private abstract class TLBReplacement {
+	/**
+	 * Return the way, within the set starting at <i>first</i>, to replace.
+	 */
+	abstract int victim(int first);
+
+	/** Called when an entry is written. */
+	void filled(int index) {
+	}
+
+	/** Called when an entry is used to translate an address. */
+	void touch(int index) {
+	}
+
+	/**
+	 * Return <tt>true</tt> if this policy needs to see every use of an
+	 * entry, including those that skip the TLB search.
+	 */
+	boolean tracksUse() {
+	    return false;
+	}
+    }
+
+    /** Replace a random entry in the set. */
+    private class RandomReplacement extends TLBReplacement {
+	int victim(int first) {
+	    return Lib.random(tlbWays);
+	}
+    }
+
+    /** Replace the entry in the set that was written longest ago. */
+    private class FIFOReplacement extends TLBReplacement {
+	int victim(int first) {
+	    return next[first/tlbWays];
+	}
+
+	void filled(int index) {
+	    int set = index/tlbWays;
+	    if (index%tlbWays == next[set])
+		next[set] = (next[set]+1) % tlbWays;
+	}
+
+	private int[] next = new int[tlbSets];
+    }
+
+    /**
+     * Tree pseudo-LRU. Each set keeps <tt>tlbWays-1</tt> bits forming a
+     * binary tree over its entries; every use points the bits on the path to
+     * the used entry away from it, and the victim is found by following the
+     * bits from the root.
+     */
+    private class PseudoLRUReplacement extends TLBReplacement {
+	PseudoLRUReplacement() {
+	    Lib.assertTrue(tlbWays <= 32 && (tlbWays & (tlbWays-1)) == 0,
+			   "pseudo-LRU needs a power-of-two associativity");
+	}
+	
+	int victim(int first) {
+	    int bits = tree[first/tlbWays];
+	    int node = 1;
+	    while (node < tlbWays)
+		node = node*2 + ((bits >>> node) & 1);
+
+	    return node - tlbWays;
+	}
+
+	void filled(int index) {
+	    touch(index);
+	}
+
+	void touch(int index) {
+	    int set = index/tlbWays;
+	    int bits = tree[set];
+
+	    // walk up from the leaf, pointing each parent at the other child
+	    for (int node = tlbWays + index%tlbWays; node > 1; node /= 2) {
+		if ((node & 1) == 0)
+		    bits |= 1 << (node/2);
+		else
+		    bits &= ~(1 << (node/2));
+	    }
+
+	    tree[set] = bits;
+	}
+
+	boolean tracksUse() {
+	    return true;
+	}
+
+	private int[] tree = new int[tlbSets];
+    }
+
+    /**
+     * A straight-line run of instructions within one physical page, ending
+     * after the first branch, jump or syscall, compiled to a sequence of
+     * operations.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int end = (paddr / pageSize + 1) * pageSize;
+	    int length = 0;
+
+	    while (paddr + length*4 < end) {
+		int flags = decodeWord(paddr + length*4).flags;
+		int operation = decodeWord(paddr + length*4).operation;
+
+		length++;
+
+		if (Lib.test(Mips.BRANCH, flags) ||
+		    operation == Mips.SYSCALL ||
+		    operation == Mips.UNIMPL ||
+		    operation == Mips.INVALID)
+		    break;
+	    }
+
+	    words = new int[length];
+	    ops = new Operation[length];
+
+	    for (int i=0; i<length; i++) {
+		DecodedInstruction decoded = decodeWord(paddr + i*4);
+		words[i] = decoded.value;
+		ops[i] = compile(decoded);
+	    }
+	}
+
+	/**
+	 * Test whether every instruction this block was compiled from is still
+	 * in memory.
+	 *
+	 * @return	<tt>true</tt> if this block can still be executed.
+	 */
+	boolean isCurrent() {
+	    for (int i=0; i<words.length; i++) {
+		if (Lib.bytesToInt(mainMemory, paddr + i*4) != words[i])
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	/**
+	 * Return the block this block last exited to at the specified virtual
+	 * address, if that link is still valid.
+	 *
+	 * @param	vaddr	the virtual address control was transferred to.
+	 * @return	the linked block, or <tt>null</tt> if there is none.
+	 */
+	BasicBlock successor(int vaddr) {
+	    for (int i=0; i<links.length; i++) {
+		if (links[i] != null && linkVaddrs[i] == vaddr &&
+		    linkBreaks[i] == blockBreaks)
+		    return links[i];
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * Link this block to the block it just exited to. A block has one link
+	 * slot per way out (fall through or branch taken); older links are
+	 * replaced in turn.
+	 *
+	 * @param	vaddr	the virtual address control was transferred to.
+	 * @param	block	the block starting at <i>vaddr</i>.
+	 */
+	void link(int vaddr, BasicBlock block) {
+	    links[nextLink] = block;
+	    linkVaddrs[nextLink] = vaddr;
+	    linkBreaks[nextLink] = blockBreaks;
+	    nextLink = (nextLink+1) % links.length;
+	}
+
+	/**
+	 * Compile as many of this block's instructions as
+	 * <tt>BlockCompiler</tt> can.
+	 */
+	void compileCode() {
+	    BlockCompiler compiler = new BlockCompiler(words);
+	    code = compiler.generate();
+	    if (code != null)
+		codeLength = compiler.length;
+	}
+
+	/** The number of times this block has been entered. */
+	int entries = 0;
+	/**
+	 * The compiled code for the first <tt>codeLength</tt> instructions, or
+	 * <tt>null</tt> if there is none.
+	 */
+	CompiledBlock code = null;
+	int codeLength = 0;
+
+	private BasicBlock[] links = new BasicBlock[2];
+	private int[] linkVaddrs = new int[2];
+	private int[] linkBreaks = new int[2];
+	private int nextLink = 0;
+	
+	/** The physical address of the first instruction. */
+	final int paddr;
+	/** The instruction words this block was compiled from. */
+	final int[] words;
+	/** One operation per instruction. */
+	final Operation[] ops;
+    }
+
+    /**
+     * Compile a decoded instruction into an operation. Common ALU, memory and
+     * control-flow instructions get operations specialized to their operands;
+     * anything else is run through a private <tt>Instruction</tt>.
+     *
+     * <p>
+     * Every operation has the same effect as <tt>Instruction.run()</tt> less
+     * the fetch: operands are read before the pending delayed load completes,
+     * the result is written after, and the PC is advanced last.
+     *
+     * @param	d	the decoded instruction.
+     * @return	an operation that executes it.
+     */
+    private Operation compile(final DecodedInstruction d) {
+	final int rs = d.rs, rt = d.rt, imm = d.imm, sh = d.sh;
+	final boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+
+	switch (d.operation) {
+	case Mips.ADD:
+	    if (Lib.test(Mips.OVERFLOW, d.flags))
+		break;
+	    if (srcImm)
+		return new Operation(d) {
+		    void execute() { complete(registers[rs] + imm); }
+		};
+	    return new Operation(d) {
+		void execute() { complete(registers[rs] + registers[rt]); }
+	    };
+	case Mips.SUB:
+	    if (Lib.test(Mips.OVERFLOW, d.flags))
+		break;
+	    return new Operation(d) {
+		void execute() { complete(registers[rs] - registers[rt]); }
+	    };
+	case Mips.AND:
+	    if (srcImm)
+		return new Operation(d) {
+		    void execute() { complete(registers[rs] & imm); }
+		};
+	    return new Operation(d) {
+		void execute() { complete(registers[rs] & registers[rt]); }
+	    };
+	case Mips.OR:
+	    if (srcImm)
+		return new Operation(d) {
+		    void execute() { complete(registers[rs] | imm); }
+		};
+	    return new Operation(d) {
+		void execute() { complete(registers[rs] | registers[rt]); }
+	    };
+	case Mips.XOR:
+	    if (srcImm)
+		return new Operation(d) {
+		    void execute() { complete(registers[rs] ^ imm); }
+		};
+	    return new Operation(d) {
+		void execute() { complete(registers[rs] ^ registers[rt]); }
+	    };
+	case Mips.NOR:
+	    return new Operation(d) {
+		void execute() { complete(~(registers[rs] | registers[rt])); }
+	    };
+	case Mips.LUI:
+	    return new Operation(d) {
+		void execute() { complete(imm << 16); }
+	    };
+	case Mips.SLT:
+	    if (Lib.test(Mips.UNSIGNED, d.flags)) {
+		if (srcImm)
+		    return new Operation(d) {
+			void execute() {
+			    complete(((registers[rs]&0xFFFFFFFFL) < imm) ? 1 : 0);
+			}
+		    };
+		return new Operation(d) {
+		    void execute() {
+			complete(((registers[rs]&0xFFFFFFFFL) <
+				  (registers[rt]&0xFFFFFFFFL)) ? 1 : 0);
+		    }
+		};
+	    }
+	    if (srcImm)
+		return new Operation(d) {
+		    void execute() { complete((registers[rs] < imm) ? 1 : 0); }
+		};
+	    return new Operation(d) {
+		void execute() {
+		    complete((registers[rs] < registers[rt]) ? 1 : 0);
+		}
+	    };
+	case Mips.SLL:
+	    if (Lib.test(Mips.SRC1SH, d.flags))
+		return new Operation(d) {
+		    void execute() { complete(registers[rt] << sh); }
+		};
+	    return new Operation(d) {
+		void execute() {
+		    complete(registers[rt] << (registers[rs]&0x1F));
+		}
+	    };
+	case Mips.SRA:
+	    if (Lib.test(Mips.SRC1SH, d.flags))
+		return new Operation(d) {
+		    void execute() { complete(registers[rt] >> sh); }
+		};
+	    return new Operation(d) {
+		void execute() {
+		    complete(registers[rt] >> (registers[rs]&0x1F));
+		}
+	    };
+	case Mips.SRL:
+	    // the interpreter shifts the sign-extended long, so do the same
+	    if (Lib.test(Mips.SRC1SH, d.flags))
+		return new Operation(d) {
+		    void execute() {
+			complete((int) (((long) registers[rt]) >>> sh));
+		    }
+		};
+	    return new Operation(d) {
+		void execute() {
+		    complete((int) (((long) registers[rt]) >>>
+				    (registers[rs]&0x1F)));
+		}
+	    };
+	case Mips.MFLO:
+	    return new Operation(d) {
+		void execute() { complete(registers[regLo]); }
+	    };
+	case Mips.MFHI:
+	    return new Operation(d) {
+		void execute() { complete(registers[regHi]); }
+	    };
+	case Mips.MULT:
+	    if (Lib.test(Mips.UNSIGNED, d.flags))
+		return new Operation(d) {
+		    void execute() {
+			long product = (registers[rs]&0xFFFFFFFFL) *
+			    (registers[rt]&0xFFFFFFFFL);
+			registers[regLo] = (int) product;
+			registers[regHi] = (int) (product >> 32);
+			finishLoad();
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	    return new Operation(d) {
+		void execute() {
+		    long product = (long) registers[rs] * registers[rt];
+		    registers[regLo] = (int) product;
+		    registers[regHi] = (int) (product >> 32);
+		    finishLoad();
+		    advancePC(registers[regNextPC]+4);
+		}
+	    };
+
+	case Mips.LOAD:
+	    final int size = d.size;
+	    final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	    return new Operation(d) {
+		void execute() throws MipsException {
+		    int value = readMem(registers[rs] + imm, size);
+		    if (!unsigned)
+			value = Lib.extend(value, 0, size*8);
+		    delayedLoad(dstReg, value, 0xFFFFFFFF);
+		    advancePC(registers[regNextPC]+4);
+		}
+	    };
+	case Mips.STORE:
+	    final int storeSize = d.size;
+	    return new Operation(d) {
+		void execute() throws MipsException {
+		    writeMem(registers[rs] + imm, storeSize, registers[rt]);
+		    finishLoad();
+		    advancePC(registers[regNextPC]+4);
+		}
+	    };
+
+	case Mips.JUMP:
+	    if (d.format == Mips.JFMT) {
+		final int target = d.target<<2;
+		return new Operation(d) {
+		    void execute() {
+			int nextPC = registers[regNextPC]+4;
+			int jtarget = (registers[regNextPC]&0xF0000000) | target;
+			branch(true, jtarget, nextPC);
+		    }
+		};
+	    }
+	    return new Operation(d) {
+		void execute() {
+		    branch(true, registers[rs], registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BEQ:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] == registers[rt], branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BNE:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] != registers[rt], branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BLEZ:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] <= 0, branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BGTZ:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] > 0, branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BLTZ:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] < 0, branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	case Mips.BGEZ:
+	    return new Operation(d) {
+		void execute() {
+		    branch(registers[rs] >= 0, branchTarget(),
+			   registers[regNextPC]+4);
+		}
+	    };
+	}
+
+	final Instruction inst = new Instruction();
+	return new Operation(d) {
+	    void execute() throws MipsException { inst.run(d); }
+	};
+    }
+
+    /**
+     * A compiled instruction. The anonymous subclasses created by
+     * <tt>compile()</tt> capture the instruction's operands.
+     */
+    private abstract class Operation {
+	Operation(DecodedInstruction d) {
+	    dstReg = d.dstReg;
+	    branchOffset = d.branchOffset;
+	    link = Lib.test(Mips.LINK, d.flags);
+	}
+
+	/**
+	 * Execute the instruction, including completing the delayed load and
+	 * advancing the PC.
+	 *
+	 * @exception	MipsException	if the instruction caused an exception.
+	 */
+	abstract void execute() throws MipsException;
+
+	/**
+	 * Complete an instruction that writes <i>result</i> to its
+	 * destination register.
+	 */
+	void complete(int result) {
+	    finishLoad();
+	    if (dstReg != 0)
+		registers[dstReg] = result;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** Return the target of a PC-relative branch. */
+	int branchTarget() {
+	    return registers[regNextPC] + branchOffset;
+	}
+
+	/**
+	 * Complete a branch or jump, linking if necessary.
+	 *
+	 * @param	taken	<tt>true</tt> if the branch is taken.
+	 * @param	jtarget	the branch target.
+	 * @param	nextPC	the address of the instruction after the delay
+	 *			slot.
+	 */
+	void branch(boolean taken, int jtarget, int nextPC) {
+	    finishLoad();
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	final int dstReg, branchOffset;
+	final boolean link;
+    }
+
+    /**
+     * Compiled code for the first instructions of a basic block, generated
+     * by <tt>BlockCompiler</tt> and loaded as a hidden class.
+     */
+    private static abstract class CompiledBlock {
+	CompiledBlock() {
+	}
+
+	/**
+	 * Run the compiled instructions, leaving the processor in the same
+	 * state as running their operations would. Must only be called with
+	 * the PC at the start of the block, the next PC right after it, and no
+	 * interrupt due within the compiled instructions.
+	 *
+	 * @param	processor	the processor to run on.
+	 * @return	the number of instructions run. This is less than the
+	 *		number compiled if a store hit a page of compiled code.
+	 * @exception	MipsException	if an instruction caused an exception.
+	 *				The instructions before it have run, and
+	 *				the PC points to it.
+	 */
+	abstract int run(Processor processor) throws MipsException;
+    }
+
+    /**
+     * Translates the first instructions of a basic block into a JVM method,
+     * so that HotSpot can keep MIPS registers in machine registers and inline
+     * the memory accesses. Instructions are covered up to the first one that
+     * <tt>compile()</tt> would run through an <tt>Instruction</tt>.
+     *
+     * <p>
+     * The method keeps each register the instructions use in a local
+     * variable, and keeps the value of a load in another local until the
+     * next instruction completes it, as the delayed load does. The registers
+     * it changed are written back whenever it leaves: at the end, after a
+     * store that hit a page of compiled code, and in an exception handler
+     * for each instruction that can fault, which also points the PC at that
+     * instruction.
+     *
+     * <p>
+     * Instruction <i>i</i> runs at the entry PC plus 4<i>i</i>. The first
+     * instruction may have to complete a delayed load left by code that ran
+     * before it, so after it reads its operands, the method completes that
+     * load and reloads the register locals.
+     */
+    private class BlockCompiler {
+	/**
+	 * Decode the instructions that can be compiled.
+	 *
+	 * @param	words	the instruction words of the block.
+	 */
+	BlockCompiler(int[] words) {
+	    int limit = Math.min(words.length, maxCompiledLength);
+	    decoded = new DecodedInstruction[limit];
+
+	    while (length < limit) {
+		DecodedInstruction d = new DecodedInstruction(words[length]);
+		if (!canCompile(d))
+		    break;
+
+		decoded[length++] = d;
+	    }
+	}
+
+	/**
+	 * Test whether an instruction can be compiled: the same instructions
+	 * that <tt>compile()</tt> has specialized operations for.
+	 */
+	private boolean canCompile(DecodedInstruction d) {
+	    switch (d.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+		return !Lib.test(Mips.OVERFLOW, d.flags);
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.XOR:
+	    case Mips.NOR:
+	    case Mips.LUI:
+	    case Mips.SLT:
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+	    case Mips.MULT:
+	    case Mips.LOAD:
+	    case Mips.STORE:
+	    case Mips.JUMP:
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	/**
+	 * Generate and load the compiled code.
+	 *
+	 * @return	the compiled code, or <tt>null</tt> if there is nothing
+	 *		to compile, the method would be too large for HotSpot to
+	 *		compile in turn, or it could not be loaded.
+	 */
+	CompiledBlock generate() {
+	    if (length == 0)
+		return null;
+
+	    for (int i=0; i<length; i++)
+		useRegisters(decoded[i]);
+
+	    ClassFileWriter writer =
+		new ClassFileWriter(processorName + "$Compiled",
+				    compiledBlockName);
+
+	    ClassFileWriter.Code init =
+		writer.addMethod(ClassFileWriter.accPublic, "<init>", "()V",
+				 1, 1);
+	    init.local(ClassFileWriter.ALOAD, 0);
+	    init.invoke(ClassFileWriter.INVOKESPECIAL, compiledBlockName,
+			"<init>", "()V");
+	    init.op(ClassFileWriter.RETURN);
+
+	    code = writer.addMethod(0, "run", "(L" + processorName + ";)I",
+				    maxStack, numLocals);
+
+	    // prologue
+	    code.local(ClassFileWriter.ALOAD, localProcessor);
+	    code.field(ClassFileWriter.GETFIELD, processorName, "registers",
+		       "[I");
+	    code.local(ClassFileWriter.ASTORE, localRegisters);
+	    loadRegister(regPC, localPC);
+	    code.local(ClassFileWriter.ALOAD, localProcessor);
+	    code.field(ClassFileWriter.GETFIELD, processorName, "blockBreaks",
+		       "I");
+	    code.local(ClassFileWriter.ISTORE, localBreaks);
+	    loadRegisterLocals();
+
+	    for (int i=0; i<length; i++)
+		instruction(i, decoded[i]);
+
+	    if (!Lib.test(Mips.BRANCH, decoded[length-1].flags))
+		exit(length, false, pendingTarget);
+
+	    for (int i=0; i<handlers.size(); i++)
+		handler(handlers.get(i));
+
+	    if (code.length() > maxCompiledCodeLength)
+		return null;
+
+	    return defineCompiledBlock(writer.toByteArray());
+	}
+
+	/**
+	 * Assign a local variable to each register an instruction reads or
+	 * writes.
+	 */
+	private void useRegisters(DecodedInstruction d) {
+	    boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+	    boolean writes = true;
+
+	    switch (d.operation) {
+	    case Mips.LUI:
+		break;
+	    case Mips.MFLO:
+		use(regLo);
+		break;
+	    case Mips.MFHI:
+		use(regHi);
+		break;
+	    case Mips.MULT:
+		use(d.rs);
+		use(d.rt);
+		use(regLo);
+		use(regHi);
+		writes = false;
+		break;
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+		use(d.rt);
+		if (!Lib.test(Mips.SRC1SH, d.flags))
+		    use(d.rs);
+		break;
+	    case Mips.LOAD:
+		use(d.rs);
+		break;
+	    case Mips.STORE:
+		use(d.rs);
+		use(d.rt);
+		writes = false;
+		break;
+	    case Mips.JUMP:
+		if (d.format != Mips.JFMT)
+		    use(d.rs);
+		writes = Lib.test(Mips.LINK, d.flags);
+		break;
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		if (d.operation == Mips.BEQ || d.operation == Mips.BNE)
+		    use(d.rt);
+		use(d.rs);
+		writes = Lib.test(Mips.LINK, d.flags);
+		break;
+	    default:
+		use(d.rs);
+		if (!srcImm)
+		    use(d.rt);
+		break;
+	    }
+
+	    if (writes && d.dstReg > 0)
+		use(d.dstReg);
+	}
+
+	private void use(int register) {
+	    if (registerLocal[register] < 0)
+		registerLocal[register] = numLocals++;
+	}
+
+	/**
+	 * Compile instruction <i>i</i>, following the operation that
+	 * <tt>compile()</tt> creates for it.
+	 */
+	private void instruction(int i, DecodedInstruction d) {
+	    boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+
+	    switch (d.operation) {
+	    case Mips.ADD:
+		read(d.rs);
+		source2(d, srcImm);
+		code.op(ClassFileWriter.IADD);
+		result(i, d);
+		break;
+	    case Mips.SUB:
+		read(d.rs);
+		read(d.rt);
+		code.op(ClassFileWriter.ISUB);
+		result(i, d);
+		break;
+	    case Mips.AND:
+		read(d.rs);
+		source2(d, srcImm);
+		code.op(ClassFileWriter.IAND);
+		result(i, d);
+		break;
+	    case Mips.OR:
+		read(d.rs);
+		source2(d, srcImm);
+		code.op(ClassFileWriter.IOR);
+		result(i, d);
+		break;
+	    case Mips.XOR:
+		read(d.rs);
+		source2(d, srcImm);
+		code.op(ClassFileWriter.IXOR);
+		result(i, d);
+		break;
+	    case Mips.NOR:
+		read(d.rs);
+		read(d.rt);
+		code.op(ClassFileWriter.IOR);
+		code.pushInt(-1);
+		code.op(ClassFileWriter.IXOR);
+		result(i, d);
+		break;
+	    case Mips.LUI:
+		code.pushInt(d.imm << 16);
+		result(i, d);
+		break;
+	    case Mips.SLT:
+		// the sign of the 64-bit difference is the result
+		readLong(d.rs, unsigned);
+		if (srcImm) {
+		    code.pushInt(d.imm);
+		    code.op(ClassFileWriter.I2L);
+		}
+		else {
+		    readLong(d.rt, unsigned);
+		}
+		code.op(ClassFileWriter.LSUB);
+		code.pushInt(63);
+		code.op(ClassFileWriter.LUSHR);
+		code.op(ClassFileWriter.L2I);
+		result(i, d);
+		break;
+	    case Mips.SLL:
+		read(d.rt);
+		shiftAmount(d);
+		code.op(ClassFileWriter.ISHL);
+		result(i, d);
+		break;
+	    case Mips.SRA:
+		read(d.rt);
+		shiftAmount(d);
+		code.op(ClassFileWriter.ISHR);
+		result(i, d);
+		break;
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended long, so do the same
+		readLong(d.rt, false);
+		shiftAmount(d);
+		code.op(ClassFileWriter.LUSHR);
+		code.op(ClassFileWriter.L2I);
+		result(i, d);
+		break;
+	    case Mips.MFLO:
+		read(regLo);
+		result(i, d);
+		break;
+	    case Mips.MFHI:
+		read(regHi);
+		result(i, d);
+		break;
+	    case Mips.MULT:
+		readLong(d.rs, unsigned);
+		readLong(d.rt, unsigned);
+		code.op(ClassFileWriter.LMUL);
+		code.op(ClassFileWriter.DUP2);
+		code.op(ClassFileWriter.L2I);
+		code.local(ClassFileWriter.ISTORE, localTemp);
+		code.pushInt(32);
+		code.op(ClassFileWriter.LSHR);
+		code.op(ClassFileWriter.L2I);
+		code.local(ClassFileWriter.ISTORE, localTempHi);
+		// completing the load may reload the register locals
+		complete(i);
+		code.local(ClassFileWriter.ILOAD, localTemp);
+		write(regLo);
+		code.local(ClassFileWriter.ILOAD, localTempHi);
+		write(regHi);
+		break;
+
+	    case Mips.LOAD:
+		memoryAccess(i, d);
+		code.invoke(ClassFileWriter.INVOKEVIRTUAL, processorName,
+			    "compiledRead", "(II)I");
+		endMemoryAccess();
+		if (!unsigned && d.size < 4) {
+		    code.pushInt(32 - d.size*8);
+		    code.op(ClassFileWriter.ISHL);
+		    code.pushInt(32 - d.size*8);
+		    code.op(ClassFileWriter.ISHR);
+		}
+		code.local(ClassFileWriter.ISTORE, localTemp);
+		complete(i);
+		if (d.dstReg != 0) {
+		    code.local(ClassFileWriter.ILOAD, localTemp);
+		    code.local(ClassFileWriter.ISTORE, localPending);
+		    pendingTarget = d.dstReg;
+		}
+		break;
+	    case Mips.STORE:
+		memoryAccess(i, d);
+		read(d.rt);
+		code.invoke(ClassFileWriter.INVOKEVIRTUAL, processorName,
+			    "compiledWrite", "(III)V");
+		endMemoryAccess();
+		complete(i);
+		checkBreaks(i);
+		break;
+
+	    default:
+		branch(i, d);
+		break;
+	    }
+	}
+
+	/**
+	 * Compile the branch or jump that ends the block. The next PC is
+	 * computed into <tt>localTemp</tt> before the delayed load completes.
+	 */
+	private void branch(int i, DecodedInstruction d) {
+	    int delaySlot = i*4 + 4;
+
+	    if (d.operation == Mips.JUMP) {
+		if (d.format == Mips.JFMT) {
+		    pcPlus(delaySlot);
+		    code.pushInt(0xF0000000);
+		    code.op(ClassFileWriter.IAND);
+		    code.pushInt(d.target<<2);
+		    code.op(ClassFileWriter.IOR);
+		}
+		else {
+		    read(d.rs);
+		}
+		code.local(ClassFileWriter.ISTORE, localTemp);
+	    }
+	    else {
+		ClassFileWriter.Label notTaken = new ClassFileWriter.Label();
+		ClassFileWriter.Label join = new ClassFileWriter.Label();
+
+		read(d.rs);
+		switch (d.operation) {
+		case Mips.BEQ:
+		    read(d.rt);
+		    code.jump(ClassFileWriter.IF_ICMPNE, notTaken);
+		    break;
+		case Mips.BNE:
+		    read(d.rt);
+		    code.jump(ClassFileWriter.IF_ICMPEQ, notTaken);
+		    break;
+		case Mips.BLEZ:
+		    code.jump(ClassFileWriter.IFGT, notTaken);
+		    break;
+		case Mips.BGTZ:
+		    code.jump(ClassFileWriter.IFLE, notTaken);
+		    break;
+		case Mips.BLTZ:
+		    code.jump(ClassFileWriter.IFGE, notTaken);
+		    break;
+		case Mips.BGEZ:
+		    code.jump(ClassFileWriter.IFLT, notTaken);
+		    break;
+		}
+
+		pcPlus(delaySlot + d.branchOffset);
+		code.local(ClassFileWriter.ISTORE, localTemp);
+		code.jump(ClassFileWriter.GOTO, join);
+		code.mark(notTaken);
+		pcPlus(delaySlot + 4);
+		code.local(ClassFileWriter.ISTORE, localTemp);
+		code.mark(join);
+	    }
+
+	    complete(i);
+
+	    if (Lib.test(Mips.LINK, d.flags) && d.dstReg != 0) {
+		pcPlus(delaySlot + 4);
+		write(d.dstReg);
+	    }
+
+	    exit(i+1, true, 0);
+	}
+
+	/** Push the second source operand: the immediate or <i>rt</i>. */
+	private void source2(DecodedInstruction d, boolean srcImm) {
+	    if (srcImm)
+		code.pushInt(d.imm);
+	    else
+		read(d.rt);
+	}
+
+	/**
+	 * Push the shift amount: the immediate or the low bits of <i>rs</i>.
+	 */
+	private void shiftAmount(DecodedInstruction d) {
+	    if (Lib.test(Mips.SRC1SH, d.flags)) {
+		code.pushInt(d.sh);
+	    }
+	    else {
+		read(d.rs);
+		code.pushInt(0x1F);
+		code.op(ClassFileWriter.IAND);
+	    }
+	}
+
+	/**
+	 * Store the result on the stack to the destination register, once the
+	 * delayed load has completed.
+	 */
+	private void result(int i, DecodedInstruction d) {
+	    if (i > 0 && pendingTarget == 0) {
+		if (d.dstReg != 0)
+		    write(d.dstReg);
+		else
+		    code.op(ClassFileWriter.POP);
+		return;
+	    }
+
+	    code.local(ClassFileWriter.ISTORE, localTemp);
+	    complete(i);
+	    if (d.dstReg != 0) {
+		code.local(ClassFileWriter.ILOAD, localTemp);
+		write(d.dstReg);
+	    }
+	}
+
+	/**
+	 * Complete the delayed load in progress before instruction <i>i</i>.
+	 * For the first instruction that load was started outside the
+	 * compiled code, so the processor completes it.
+	 */
+	private void complete(int i) {
+	    if (i == 0) {
+		ClassFileWriter.Label done = new ClassFileWriter.Label();
+
+		code.local(ClassFileWriter.ALOAD, localProcessor);
+		code.field(ClassFileWriter.GETFIELD, processorName,
+			   "loadTarget", "I");
+		code.jump(ClassFileWriter.IFEQ, done);
+		code.local(ClassFileWriter.ALOAD, localProcessor);
+		code.invoke(ClassFileWriter.INVOKEVIRTUAL, processorName,
+			    "finishLoad", "()V");
+		loadRegisterLocals();
+		code.mark(done);
+	    }
+	    else if (pendingTarget != 0) {
+		code.local(ClassFileWriter.ILOAD, localPending);
+		write(pendingTarget);
+	    }
+
+	    pendingTarget = 0;
+	}
+
+	/**
+	 * Push the processor and the address of a load or store, and start
+	 * the range its exception handler covers.
+	 */
+	private void memoryAccess(int i, DecodedInstruction d) {
+	    code.local(ClassFileWriter.ALOAD, localProcessor);
+	    read(d.rs);
+	    code.pushInt(d.imm);
+	    code.op(ClassFileWriter.IADD);
+	    code.pushInt(d.size);
+
+	    // the first instruction faults before it has changed anything
+	    if (i > 0) {
+		Handler handler = new Handler();
+		handler.index = i;
+		handler.dirty = dirty.clone();
+		handler.pendingTarget = pendingTarget;
+		code.mark(handler.start);
+		handlers.add(handler);
+		accessHandler = handler;
+	    }
+	    else {
+		accessHandler = null;
+	    }
+	}
+
+	private void endMemoryAccess() {
+	    if (accessHandler != null)
+		code.mark(accessHandler.end);
+	}
+
+	/**
+	 * Leave if the store by instruction <i>i</i> may have changed compiled
+	 * code, this block's included.
+	 */
+	private void checkBreaks(int i) {
+	    ClassFileWriter.Label same = new ClassFileWriter.Label();
+
+	    code.local(ClassFileWriter.ALOAD, localProcessor);
+	    code.field(ClassFileWriter.GETFIELD, processorName, "blockBreaks",
+		       "I");
+	    code.local(ClassFileWriter.ILOAD, localBreaks);
+	    code.jump(ClassFileWriter.IF_ICMPEQ, same);
+	    exit(i+1, false, 0);
+	    code.mark(same);
+	}
+
+	/**
+	 * Write back the changed registers, call <tt>compiledExit()</tt>, and
+	 * return <i>count</i>.
+	 *
+	 * @param	count	the number of instructions that have run.
+	 * @param	nextPCInTemp	<tt>true</tt> if the next PC is in
+	 *				<tt>localTemp</tt>, <tt>false</tt> if it
+	 *				follows the last instruction that ran.
+	 * @param	loadTarget	the target of the delayed load in
+	 *				<tt>localPending</tt>, or 0.
+	 */
+	private void exit(int count, boolean nextPCInTemp, int loadTarget) {
+	    writeBack(dirty);
+	    callExit(count, nextPCInTemp, loadTarget);
+	    code.pushInt(count);
+	    code.op(ClassFileWriter.IRETURN);
+	}
+
+	/**
+	 * Generate the exception handler for a load or store: leave the
+	 * processor as if it had stopped just before the instruction, and
+	 * rethrow the exception.
+	 */
+	private void handler(Handler handler) {
+	    ClassFileWriter.Label start = new ClassFileWriter.Label();
+	    code.mark(start);
+	    code.handler(handler.start, handler.end, start,
+			 processorName + "$MipsException");
+
+	    code.local(ClassFileWriter.ASTORE, localException);
+	    writeBack(handler.dirty);
+	    callExit(handler.index, false, handler.pendingTarget);
+	    code.local(ClassFileWriter.ALOAD, localException);
+	    code.op(ClassFileWriter.ATHROW);
+	}
+
+	private void callExit(int count, boolean nextPCInTemp,
+			      int loadTarget) {
+	    code.local(ClassFileWriter.ALOAD, localProcessor);
+	    code.pushInt(count);
+	    if (nextPCInTemp)
+		code.local(ClassFileWriter.ILOAD, localTemp);
+	    else
+		pcPlus(count*4 + 4);
+	    code.pushInt(loadTarget);
+	    if (loadTarget != 0)
+		code.local(ClassFileWriter.ILOAD, localPending);
+	    else
+		code.pushInt(0);
+	    code.invoke(ClassFileWriter.INVOKEVIRTUAL, processorName,
+			"compiledExit", "(IIII)V");
+	}
+
+	private void writeBack(boolean[] changed) {
+	    for (int r=0; r<numUserRegisters; r++) {
+		if (changed[r]) {
+		    code.local(ClassFileWriter.ALOAD, localRegisters);
+		    code.pushInt(r);
+		    code.local(ClassFileWriter.ILOAD, registerLocal[r]);
+		    code.op(ClassFileWriter.IASTORE);
+		}
+	    }
+	}
+
+	private void loadRegisterLocals() {
+	    for (int r=0; r<numUserRegisters; r++) {
+		if (registerLocal[r] >= 0)
+		    loadRegister(r, registerLocal[r]);
+	    }
+	}
+
+	private void loadRegister(int register, int local) {
+	    code.local(ClassFileWriter.ALOAD, localRegisters);
+	    code.pushInt(register);
+	    code.op(ClassFileWriter.IALOAD);
+	    code.local(ClassFileWriter.ISTORE, local);
+	}
+
+	private void read(int register) {
+	    code.local(ClassFileWriter.ILOAD, registerLocal[register]);
+	}
+
+	/** Push a register as a long, sign- or zero-extended. */
+	private void readLong(int register, boolean unsigned) {
+	    read(register);
+	    code.op(ClassFileWriter.I2L);
+	    if (unsigned) {
+		code.pushInt(32);
+		code.op(ClassFileWriter.LSHL);
+		code.pushInt(32);
+		code.op(ClassFileWriter.LUSHR);
+	    }
+	}
+
+	private void write(int register) {
+	    code.local(ClassFileWriter.ISTORE, registerLocal[register]);
+	    dirty[register] = true;
+	}
+
+	/** Push the entry PC plus <i>offset</i>. */
+	private void pcPlus(int offset) {
+	    code.local(ClassFileWriter.ILOAD, localPC);
+	    code.pushInt(offset);
+	    code.op(ClassFileWriter.IADD);
+	}
+
+	/** The number of instructions compiled. */
+	int length = 0;
+	private DecodedInstruction[] decoded;
+
+	private ClassFileWriter.Code code;
+	/** The local variable caching each register, or -1. */
+	private int[] registerLocal = initialRegisterLocals();
+	private int numLocals = firstRegisterLocal;
+	/** Registers changed by the instructions compiled so far. */
+	private boolean[] dirty = new boolean[numUserRegisters];
+	/**
+	 * The target of the delayed load in <tt>localPending</tt>, or 0 if
+	 * there is none.
+	 */
+	private int pendingTarget = 0;
+
+	private ArrayList<Handler> handlers = new ArrayList<Handler>();
+	private Handler accessHandler;
+
+	/** The state to restore if the load or store at <i>index</i> faults. */
+	private class Handler {
+	    int index, pendingTarget;
+	    boolean[] dirty;
+	    ClassFileWriter.Label start = new ClassFileWriter.Label();
+	    ClassFileWriter.Label end = new ClassFileWriter.Label();
+	}
+
+	private int[] initialRegisterLocals() {
+	    int[] locals = new int[numUserRegisters];
+	    for (int r=0; r<numUserRegisters; r++)
+		locals[r] = -1;
+	    return locals;
+	}
+
+	private static final int localProcessor = 1, localRegisters = 2;
+	private static final int localPC = 3, localBreaks = 4;
+	private static final int localPending = 5, localTemp = 6;
+	private static final int localTempHi = 7, localException = 8;
+	private static final int firstRegisterLocal = 9;
+	private static final int maxStack = 8;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch targets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
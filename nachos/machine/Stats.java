@@ -15,7 +15,9 @@ public final class Stats {
     }
 
     /**
-     * Print out the statistics in this object.
+     * Print out the statistics in this object. The context switch latency is
+     * host time, which differs from run to run, so it is only printed if
+     * <tt>Stats.printContextSwitches</tt> is set in the configuration.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -29,6 +31,12 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (Config.getBoolean("Stats.printContextSwitches", false))
+	    System.out.println("Context switches: " + numContextSwitches
+			       + ", average latency "
+			       + (numContextSwitches == 0 ? 0 :
+				  contextSwitchNanos / numContextSwitches)
+			       + " ns");
     }
 
     /**
@@ -61,6 +69,13 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of context switches between different TCBs. */
+    public long numContextSwitches = 0;
+    /**
+     * The total host time, in nanoseconds, from a TCB handing off the CPU to
+     * the next TCB running.
+     */
+    public long contextSwitchNanos = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
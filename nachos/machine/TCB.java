@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,13 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * If <tt>TCB.threadBackend</tt> is <tt>virtual</tt>, TCBs other than the first
+ * run on Java virtual threads where the JVM supports them (Java 21 and
+ * later), and on platform threads with a small stack otherwise. The limit on
+ * running TCBs is then <tt>TCB.maxThreads</tt> rather than
+ * <tt>maxThreads</tt>.
  */
 public final class TCB {
     /**
@@ -40,6 +49,25 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String backend = Config.getString("TCB.threadBackend", "platform");
+	Lib.assertTrue(backend.equals("platform") || backend.equals("virtual"),
+		       "bad value for TCB.threadBackend: " + backend);
+
+	lightweight = backend.equals("virtual");
+	if (lightweight) {
+	    threadLimit = Config.getInteger("TCB.maxThreads", 100000);
+	    
+	    // Thread.ofVirtual() only exists in Java 21 and later
+	    try {
+		ofVirtual = Thread.class.getMethod("ofVirtual");
+		unstarted = Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		ofVirtual = unstarted = null;
+	    }
+	}
     }
     
     /**
@@ -66,7 +94,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +122,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -157,6 +185,8 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
+
+	switchStartTime = System.nanoTime();
 	
 	this.interrupt();
 	previous.yield();
@@ -207,6 +237,26 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create the Java thread for a TCB, using the backend selected by
+     * <tt>TCB.threadBackend</tt>.
+     */
+    private static Thread newThread(Runnable target) {
+	if (!lightweight)
+	    return new Thread(target);
+
+	if (ofVirtual != null) {
+	    try {
+		return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("cannot create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(null, target, "TCB", lightweightStackSize);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -277,32 +327,39 @@ public final class TCB {
 	}
 
 	currentTCB = this;
+
+	if (switchStartTime != 0) {
+	    privilege.stats.numContextSwitches++;
+	    privilege.stats.contextSwitchNanos +=
+		System.nanoTime() - switchStartTime;
+	    switchStartTime = 0;
+	}
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	// park() can return spuriously, so check the flag again
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. If that thread has not
+     * parked yet, the permit makes its next <tt>park()</tt> return at once.
+     * Used in the ping-pong process of starting and destroying TCBs, as well
+     * as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +389,32 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The limit actually enforced: <tt>maxThreads</tt>, or
+     * <tt>TCB.maxThreads</tt> with the <tt>virtual</tt> backend.
+     */
+    private static int threadLimit = maxThreads;
+
+    /** <tt>true</tt> if using the <tt>virtual</tt> backend. */
+    private static boolean lightweight = false;
+    /**
+     * <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>, or
+     * <tt>null</tt> if this JVM has no virtual threads.
+     */
+    private static Method ofVirtual, unstarted;
+    /**
+     * Stack size requested for platform threads standing in for virtual
+     * ones.
+     */
+    private static final long lightweightStackSize = 256*1024;
+
+    /**
+     * <tt>System.nanoTime()</tt> when <tt>contextSwitch()</tt> woke the next
+     * TCB, or 0 if no switch is in progress. Written before the next TCB's
+     * <tt>running</tt> flag, so the next TCB sees it.
+     */
+    private static long switchStartTime = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +471,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
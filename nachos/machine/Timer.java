@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer can instead be switched to one-shot mode with
+ * <tt>programInterrupt()</tt>, after which it only interrupts at the time it
+ * was last programmed for, if any.
  */
 public final class Timer {
     /**
@@ -59,8 +64,39 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Stop the periodic interrupts, if they have not been stopped already,
+     * and interrupt once at the specified time instead, replacing any time
+     * programmed earlier.
+     *
+     * <p>
+     * Reprogramming the timer for a later time schedules nothing: the
+     * interrupt already pending for the earlier time finds that it is not
+     * due yet, and moves itself. Reprogramming it for an earlier time
+     * schedules a new interrupt, and the old one is ignored when it occurs.
+     *
+     * @param	time	the absolute time, in ticks, at which to interrupt, or
+     *			<tt>Long.MAX_VALUE</tt> not to interrupt at all.
+     */
+    public void programInterrupt(long time) {
+	periodic = false;
+	deadline = time;
+
+	if (deadline < armed) {
+	    armed = deadline;
+	    scheduleOneShot(armed);
+	}
+    }
+
     private void timerInterrupt() {
+	if (!periodic)
+	    return;
+
 	scheduleInterrupt();
+	deliver();
+    }
+
+    private void deliver() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -69,6 +105,33 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void scheduleOneShot(final long time) {
+	long delay = Math.max(1, time - getTime());
+
+	privilege.interrupt.schedule(delay, "timer", new Runnable() {
+		public void run() { oneShotInterrupt(time); }
+	    });
+    }
+
+    private void oneShotInterrupt(long time) {
+	// superseded by an interrupt programmed for earlier
+	if (time != armed)
+	    return;
+
+	armed = Long.MAX_VALUE;
+	if (deadline > getTime()) {
+	    // reprogrammed for later since this was scheduled
+	    if (deadline != Long.MAX_VALUE) {
+		armed = deadline;
+		scheduleOneShot(armed);
+	    }
+	    return;
+	}
+
+	deadline = Long.MAX_VALUE;
+	deliver();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -80,6 +143,12 @@ public final class Timer {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean periodic = true;
+    /** The time programmed in one-shot mode, or <tt>Long.MAX_VALUE</tt>. */
+    private long deadline = Long.MAX_VALUE;
+    /** The time of the pending one-shot interrupt that will deliver it. */
+    private long armed = Long.MAX_VALUE;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
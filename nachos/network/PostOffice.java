@@ -13,22 +13,29 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>BoundedSynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Mail for a full queue is dropped, like a packet lost by the network, so
+ * that a port nobody reads from cannot hold up delivery to the others or
+ * grow without limit.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of <tt>BoundedSynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	sendLock = new Lock("PostOffice.sendLock");
 
-	queues = new SynchList[MailMessage.portLimit];
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -89,7 +96,9 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].offer(mail))
+		Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+			  + mail.dstPort);
 	}
     }
 
@@ -125,7 +134,7 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedSynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can elapse before the next
+	 * pending interrupt is due. If this returns <i>n</i>, the first
+	 * <i>n</i>-1 user ticks can be charged with <tt>chargeUserTicks()</tt>,
+	 * but the <i>n</i>th must be a call to <tt>tick(false)</tt>.
+	 *
+	 * @return	the number of user ticks until an interrupt may be due; at
+	 *		least 1.
+	 */
+	public int userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks at
+	 * once, without checking for due interrupts.
+	 *
+	 * @param	ticks	the number of user ticks to charge, fewer than
+	 *			<tt>userTicksUntilDue()</tt> returned.
+	 */
+	public void chargeUserTicks(int ticks);
     }
 
     /**
@@ -1,15 +1,27 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary heap ordered by wake time. Each entry
+ * knows its place in the heap, so a timed wait that ends early, because the
+ * thread was woken through its wait queue first, takes its entry out in
+ * O(log n) instead of searching for it.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set in the configuration, the timer does not
+ * interrupt periodically. It is programmed instead for the earlier of the
+ * next wake time and the next scheduler tick. Ticks come every
+ * <tt>Alarm.quantum</tt> ticks (500 by default) while any thread other than
+ * the idle thread is running, and stop while the idle thread runs, so while
+ * every thread sleeps, the timer interrupts only when one of them is due.
+ * This is best combined with <tt>KThread.idleFastForward</tt>.
  */
 public class Alarm {
-	public PriorityQueue alarmWaitList = new PriorityQueue<AlarmWait>();
-
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -21,26 +33,51 @@ public class Alarm {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
+
+		tickless = Config.getBoolean("Alarm.tickless", false);
+		quantum = Config.getInteger("Alarm.quantum", Stats.TimerTicks);
+		Lib.assertTrue(quantum > 0);
+
+		if (tickless) {
+			boolean intStatus = Machine.interrupt().disable();
+			nextTick = Machine.timer().getTime() + quantum;
+			programTimer();
+			Machine.interrupt().restore(intStatus);
+		}
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread
-	 * that should be run.
+	 * periodically (approximately every 500 clock ticks), or in tickless mode
+	 * whenever a thread is due or a tick is. Causes the current thread
+	 * to yield, forcing a context switch if there is another thread that
+	 * should be run, unless the scheduler says its quantum is not used up
+	 * yet.
 	 */
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
 		long currentTime = Machine.timer().getTime();
 		Lib.debug('j', "ALARM: Machine time: " + currentTime);
-		AlarmWait waitingThread = (AlarmWait)alarmWaitList.peek();
-		while (waitingThread != null && currentTime >= waitingThread.getWakeTime()) {
-			alarmWaitList.poll();
-			waitingThread.thread.ready();
-			waitingThread = (AlarmWait)alarmWaitList.peek();
+		while (waitCount > 0 && currentTime >= alarmWaitList[0].getWakeTime()) {
+			AlarmWait waitingThread = alarmWaitList[0];
+			removeWait(waitingThread);
+			// A timed waiter that its queue has already handed access to is
+			// no longer on the queue, and is already ready.
+			if (waitingThread.waitQueue == null
+				|| waitingThread.waitQueue.remove(waitingThread.thread)) {
+				waitingThread.timedOut = true;
+				waitingThread.thread.ready();
+			}
+		}
+		boolean preempt = ThreadedKernel.scheduler.timerInterrupt();
+		if (tickless) {
+			if (nextTick <= currentTime)
+				nextTick = currentTime + quantum;
+			programTimer();
 		}
 		Machine.interrupt().restore(intStatus);
-		KThread.currentThread().yield();    
+		if (preempt)
+			KThread.preempt();
 	}
 
 	/**
@@ -63,16 +100,366 @@ public class Alarm {
 			boolean intStatus = Machine.interrupt().disable();
 			long time = Machine.timer().getTime() + x;
 			AlarmWait aw = new AlarmWait(time , KThread.currentThread());
-			alarmWaitList.offer(aw);
+			addWait(aw);
 			KThread.sleep();
 			Machine.interrupt().restore(intStatus);
 		} else return;
 	}
+
+	/**
+	 * Put the current thread, which has just been placed on
+	 * <tt>waitQueue</tt>, to sleep until it is taken off the queue by
+	 * <tt>nextThread()</tt> or at least <i>x</i> ticks have passed, whichever
+	 * comes first. If the time runs out first, the timer interrupt handler
+	 * removes the thread from <tt>waitQueue</tt> before waking it, so the
+	 * queue will never hand it access afterwards. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @param	waitQueue	the queue the current thread is waiting on.
+	 * @param	x	the most clock ticks to wait. Must be positive.
+	 * @return	<tt>true</tt> if the thread was woken through
+	 *		<tt>waitQueue</tt>, <tt>false</tt> if it timed out.
+	 */
+	boolean sleepOn(ThreadQueue waitQueue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(x > 0);
+
+		long time = Machine.timer().getTime() + x;
+		AlarmWait aw = new AlarmWait(time, KThread.currentThread());
+		aw.waitQueue = waitQueue;
+		addWait(aw);
+		KThread.sleep();
+
+		if (aw.heapIndex >= 0)
+			removeWait(aw);
+		return !aw.timedOut;
+	}
+
+	/**
+	 * Called by <tt>KThread</tt> with interrupts disabled whenever a thread
+	 * is dispatched. In tickless mode, this stops the ticks when the idle
+	 * thread is dispatched, and starts them again, a full quantum away, when
+	 * any other thread is dispatched after it.
+	 *
+	 * @param	idle	<tt>true</tt> if the thread is the idle thread.
+	 */
+	void dispatch(boolean idle) {
+		if (!tickless)
+			return;
+
+		if (idle)
+			nextTick = Long.MAX_VALUE;
+		else if (nextTick == Long.MAX_VALUE)
+			nextTick = Machine.timer().getTime() + quantum;
+		else
+			return;
+		programTimer();
+	}
+
+	/**
+	 * Program the timer for the earlier of the next wake time and the next
+	 * tick.
+	 */
+	private void programTimer() {
+		long time = nextTick;
+		if (waitCount > 0 && alarmWaitList[0].getWakeTime() < time)
+			time = alarmWaitList[0].getWakeTime();
+		Machine.timer().programInterrupt(time);
+	}
+
+	/*
+	 * The heap is maintained exactly as java.util.PriorityQueue maintains
+	 * its own, so that threads with equal wake times still wake in the same
+	 * order as they always have.
+	 */
+
+	private void addWait(AlarmWait aw) {
+		if (waitCount == alarmWaitList.length) {
+			AlarmWait[] newList = new AlarmWait[waitCount * 2];
+			System.arraycopy(alarmWaitList, 0, newList, 0, waitCount);
+			alarmWaitList = newList;
+		}
+		siftUp(waitCount++, aw);
+
+		if (tickless && aw.heapIndex == 0)
+			programTimer();
+	}
+
+	private void removeWait(AlarmWait aw) {
+		int i = aw.heapIndex;
+		int last = --waitCount;
+		AlarmWait moved = alarmWaitList[last];
+		alarmWaitList[last] = null;
+		aw.heapIndex = -1;
+		if (i != last) {
+			siftDown(i, moved);
+			if (alarmWaitList[i] == moved)
+				siftUp(i, moved);
+		}
+
+		if (tickless && i == 0)
+			programTimer();
+	}
+
+	private void siftUp(int k, AlarmWait aw) {
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			AlarmWait e = alarmWaitList[parent];
+			if (aw.compareTo(e) >= 0)
+				break;
+			place(k, e);
+			k = parent;
+		}
+		place(k, aw);
+	}
+
+	private void siftDown(int k, AlarmWait aw) {
+		int half = waitCount >>> 1;
+		while (k < half) {
+			int child = 2*k + 1;
+			int right = child + 1;
+			if (right < waitCount
+				&& alarmWaitList[child].compareTo(alarmWaitList[right]) > 0)
+				child = right;
+			if (aw.compareTo(alarmWaitList[child]) <= 0)
+				break;
+			place(k, alarmWaitList[child]);
+			k = child;
+		}
+		place(k, aw);
+	}
+
+	private void place(int k, AlarmWait aw) {
+		alarmWaitList[k] = aw;
+		aw.heapIndex = k;
+	}
+
+	/**
+	 * A timed wait raced against a thread that ends it. The test runs the
+	 * wait in the current thread, while a forked thread, the waker, calls
+	 * <tt>wake()</tt> once <i>wakeAfter</i> ticks have passed.
+	 */
+	private static abstract class TimedWaitTest implements Runnable {
+		/** Called in the waker before the waiter starts to wait. */
+		void prepare() {
+		}
+
+		/** Wait at most <i>timeout</i> ticks, and tell if woken. */
+		abstract boolean await(long timeout);
+
+		/** End the wait from the waker, with interrupts disabled. */
+		abstract void wake();
+
+		/** Called in the waker if the wait timed out unwoken. */
+		void cleanUp() {
+		}
+
+		/** Check what the wait left behind, once the waker is done. */
+		void check(boolean woken) {
+		}
+
+		public void run() {
+			prepare();
+			started.V();
+
+			while (!returned) {
+				boolean intStatus = Machine.interrupt().disable();
+				if (!woke && Machine.timer().getTime() >= wakeAt) {
+					wake();
+					woke = true;
+				}
+				Machine.interrupt().restore(intStatus);
+			}
+
+			if (!woke)
+				cleanUp();
+		}
+
+		/**
+		 * Wait for at most <i>timeout</i> ticks, while the waker ends
+		 * the wait after <i>wakeAfter</i> ticks.
+		 *
+		 * @return	<tt>true</tt> if the waiter was woken, but only ran
+		 *		again after the timer interrupt that found its time
+		 *		up, so that taking it off its queue failed.
+		 */
+		boolean test(long timeout, long wakeAfter) {
+			started = new Semaphore(0);
+			woke = returned = false;
+			wakeAt = Long.MAX_VALUE;
+
+			KThread waker = new KThread(this).setName("waker");
+			waker.fork();
+			started.P();
+
+			boolean intStatus = Machine.interrupt().disable();
+			long start = Machine.timer().getTime();
+			if (wakeAfter < Long.MAX_VALUE)
+				wakeAt = start + wakeAfter;
+			boolean woken = await(timeout);
+			long end = Machine.timer().getTime();
+			returned = true;
+			Machine.interrupt().restore(intStatus);
+
+			waker.join();
+
+			Lib.assertTrue(woken || end - start >= timeout);
+			Lib.assertTrue(!woken || woke);
+			check(woken);
+
+			return woken && end - start >= timeout;
+		}
+
+		/**
+		 * Check a wait that times out, a wait that is ended early, and
+		 * a wait whose waker comes just before its time is up, until
+		 * the timer interrupt finds such a waiter already off its
+		 * queue.
+		 */
+		void selfTest() {
+			Lib.assertTrue(!test(100, Long.MAX_VALUE));
+			Lib.assertTrue(!test(100000, 0));
+
+			// halfway between ticks, so that no tick preempts the
+			// waker between its wake() and the interrupt at timeout
+			long timeout = 4*Stats.TimerTicks + Stats.TimerTicks/2;
+			boolean raced = false;
+			for (int i = 0; i < 20 && !raced; i++)
+				raced = test(timeout, timeout - 2*Stats.KernelTick);
+			Lib.assertTrue(raced);
+		}
+
+		/** Whether the waker has called <tt>wake()</tt>. */
+		boolean woke;
+		private Semaphore started;
+		private boolean returned;
+		private long wakeAt;
+	}
+
+	private static class SemaphoreTest extends TimedWaitTest {
+		boolean await(long timeout) {
+			return semaphore.tryP(timeout);
+		}
+
+		void wake() {
+			semaphore.V();
+		}
+
+		void check(boolean woken) {
+			// a V() that came too late must leave its unit behind
+			Lib.assertTrue(semaphore.tryP(0) == (woke && !woken));
+		}
+
+		private Semaphore semaphore = new Semaphore(0);
+	}
+
+	private static class LockTest extends TimedWaitTest {
+		void prepare() {
+			lock.acquire();
+			holder = KThread.currentThread();
+			boolean intStatus = Machine.interrupt().disable();
+			priority = ThreadedKernel.scheduler.getEffectivePriority();
+			Machine.interrupt().restore(intStatus);
+		}
+
+		boolean await(long timeout) {
+			raised = ThreadedKernel.scheduler.increasePriority();
+			boolean woken = lock.tryAcquire(timeout);
+			if (raised)
+				ThreadedKernel.scheduler.decreasePriority();
+
+			// a waiter that gives up takes its donation with it
+			if (!woken && donating()) {
+				Lib.assertTrue(ThreadedKernel.scheduler
+					.getEffectivePriority(holder) == priority);
+			}
+			return woken;
+		}
+
+		void wake() {
+			donated =
+				ThreadedKernel.scheduler.getEffectivePriority() > priority;
+			lock.release();
+		}
+
+		void cleanUp() {
+			lock.release();
+		}
+
+		void check(boolean woken) {
+			if (raised && woke && donating())
+				Lib.assertTrue(donated);
+
+			Lib.assertTrue(lock.isHeldByCurrentThread() == woken);
+			if (woken)
+				lock.release();
+			Lib.assertTrue(lock.tryAcquire(0));
+			lock.release();
+		}
+
+		/**
+		 * Whether effective priorities reflect donation alone, rather than
+		 * also changing as threads run.
+		 */
+		private boolean donating() {
+			return ThreadedKernel.scheduler instanceof PriorityScheduler;
+		}
+
+		private Lock lock = new Lock();
+		private KThread holder;
+		private int priority;
+		private boolean raised, donated;
+	}
+
+	private static class Condition2Test extends TimedWaitTest {
+		boolean await(long timeout) {
+			lock.acquire();
+			boolean woken = condition.sleepFor(timeout);
+			Lib.assertTrue(lock.isHeldByCurrentThread());
+			lock.release();
+			return woken;
+		}
+
+		void wake() {
+			lock.acquire();
+			condition.wake();
+			lock.release();
+		}
+
+		private Lock lock = new Lock();
+		private Condition2 condition = new Condition2(lock);
+	}
+
+	/**
+	 * Test that timed waits end either way, and that a waiter whose queue
+	 * hands it access just before the timer interrupt finds its time up is
+	 * treated as woken.
+	 */
+	public static void selfTest() {
+		new SemaphoreTest().selfTest();
+		new LockTest().selfTest();
+		new Condition2Test().selfTest();
+	}
+
+	/** The sleeping threads, as a heap ordered by wake time. */
+	private AlarmWait[] alarmWaitList = new AlarmWait[16];
+	private int waitCount = 0;
+
+	private boolean tickless;
+	/** The ticks between scheduler ticks in tickless mode. */
+	private long quantum;
+	/** When the next scheduler tick is due, or never while idle. */
+	private long nextTick = Long.MAX_VALUE;
 }
 
 class AlarmWait implements Comparable<AlarmWait>{
 	long wakeTime;
 	KThread thread;
+	/** The queue a timed waiter is on, or <tt>null</tt> for waitUntil. */
+	ThreadQueue waitQueue = null;
+	/** This entry's index in the heap, or -1 once it is out of it. */
+	int heapIndex = -1;
+	boolean timedOut = false;
 
 	public AlarmWait(long wakeTime, KThread thread) {
 		this.wakeTime=wakeTime;
@@ -0,0 +1,217 @@
+package nachos.threads;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity, kept in a circular array.
+ *
+ * <p>
+ * Unlike <tt>SynchList</tt>, adding an object allocates nothing, and a queue
+ * that nobody empties cannot grow without limit: <tt>add()</tt> blocks while
+ * the queue is full, and <tt>offer()</tt> refuses the object instead. Objects
+ * can also be taken without blocking, one at a time with <tt>poll()</tt> or
+ * many at once with <tt>drainTo()</tt>.
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the most objects the queue can hold. Must be
+     *				positive.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	items = new Object[capacity];
+	lock = new Lock();
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until there
+     * is room if necessary. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	while (count == items.length) {
+	    waitingAdders++;
+	    listFull.sleep();
+	}
+	append(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without blocking.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = (count < items.length);
+	if (added)
+	    append(o);
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	lock.acquire();
+	while (count == 0) {
+	    waitingRemovers++;
+	    listEmpty.sleep();
+	}
+	Object o = take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * blocking.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	lock.acquire();
+	Object o = (count == 0) ? null : take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <tt>max</tt> objects from the front of the queue, without
+     * blocking, and add them in order to the specified collection.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	lock.acquire();
+	int n = Math.min(max, count);
+	for (int i=0; i<n; i++) {
+	    c.add(items[head]);
+	    items[head] = null;
+	    head = (head + 1) % items.length;
+	}
+	count -= n;
+	for (int i=0; i<n && waitingAdders > 0; i++) {
+	    waitingAdders--;
+	    listFull.wake();
+	}
+	lock.release();
+
+	return n;
+    }
+
+    private void append(Object o) {
+	items[(head + count) % items.length] = o;
+	count++;
+	if (waitingRemovers > 0) {
+	    waitingRemovers--;
+	    listEmpty.wake();
+	}
+    }
+
+    private Object take() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	count--;
+	if (waitingAdders > 0) {
+	    waitingAdders--;
+	    listFull.wake();
+	}
+	return o;
+    }
+
+    private static class AdderTest implements Runnable {
+	AdderTest(BoundedSynchList list, int from, int to) {
+	    this.list = list;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	public void run() {
+	    for (int i=from; i<to; i++)
+		list.add(i);
+	}
+
+	private BoundedSynchList list;
+	private int from, to;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList list = new BoundedSynchList(4);
+	LinkedList<Object> drained = new LinkedList<Object>();
+
+	// offer() and poll() never block, and refuse when full or empty
+	Lib.assertTrue(list.poll() == null);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(list.offer(i));
+	Lib.assertTrue(!list.offer(4));
+	Lib.assertTrue(list.poll().equals(0));
+	Lib.assertTrue(list.offer(4));
+
+	// drainTo() takes at most max objects, in order, across the wrap
+	Lib.assertTrue(list.drainTo(drained, 2) == 2);
+	Lib.assertTrue(list.drainTo(drained, 10) == 2);
+	Lib.assertTrue(list.drainTo(drained, 10) == 0);
+	for (int i=1; i<=4; i++)
+	    Lib.assertTrue(drained.removeFirst().equals(i));
+
+	// add() blocks on a full queue until drainTo() or removeFirst()
+	// makes room
+	for (int i=0; i<4; i++)
+	    list.add(i);
+	KThread adder = new KThread(new AdderTest(list, 4, 12));
+	adder.setName("adder").fork();
+	while (list.waitingAdders == 0)
+	    KThread.yield();
+	Lib.assertTrue(!list.offer(-1));
+
+	Lib.assertTrue(list.drainTo(drained, 3) == 3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(drained.removeFirst().equals(i));
+	for (int i=3; i<12; i++)
+	    Lib.assertTrue(list.removeFirst().equals(i));
+
+	adder.join();
+	Lib.assertTrue(list.poll() == null);
+	Lib.assertTrue(list.waitingAdders == 0 && list.waitingRemovers == 0);
+    }
+
+    private Object[] items;
+    private int head = 0, count = 0;
+    private Lock lock;
+    private Condition2 listEmpty, listFull;
+    /** Threads asleep on each condition that have not been woken yet. */
+    private int waitingRemovers = 0, waitingAdders = 0;
+}
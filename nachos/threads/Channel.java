@@ -0,0 +1,334 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded first-in first-out channel, through which any number of threads
+ * can send objects to any number of receiving threads.
+ *
+ * <p>
+ * The channel is a ring buffer guarded by a <tt>Lock</tt>. A sender blocks on
+ * a <tt>Condition2</tt> while the buffer is full, and a receiver while it is
+ * empty. Unlike a <tt>Communicator</tt>, a sender does not wait for a
+ * receiver, so a producer can fill the buffer before the consumer runs at
+ * all. <tt>sendAll()</tt> and <tt>receiveUpTo()</tt> move many items for
+ * one lock round trip, so a producer and a consumer can hand over a whole
+ * buffer per context switch rather than one item.
+ *
+ * <p>
+ * Integers can be sent as <tt>Integer</tt>s.
+ */
+public class Channel<T> {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of items the channel can hold before
+     *				senders block. Must be positive.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new Object[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+    }
+
+    /**
+     * Send an item, blocking while the channel is full.
+     *
+     * @param	item	the item to send. Must not be <tt>null</tt>.
+     */
+    public void send(T item) {
+	Lib.assertTrue(item != null);
+
+	lock.acquire();
+	waitForSpace();
+	buffer[(head + count) % buffer.length] = item;
+	count++;
+	wakeReceivers(1);
+	lock.release();
+    }
+
+    /**
+     * Send <tt>length</tt> items from <tt>items</tt>, starting at
+     * <tt>offset</tt>, blocking whenever the channel is full. The items are
+     * received in order, but if the channel fills up, items from other
+     * senders may come between them.
+     *
+     * @param	items	the array holding the items to send. The items must
+     *			not be <tt>null</tt>.
+     * @param	offset	the index of the first item to send.
+     * @param	length	the number of items to send.
+     */
+    public void sendAll(T[] items, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= items.length);
+
+	lock.acquire();
+	while (length > 0) {
+	    waitForSpace();
+
+	    int amount = Math.min(length, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(items, offset, buffer, tail, first);
+	    System.arraycopy(items, offset + first, buffer, 0, amount - first);
+
+	    count += amount;
+	    offset += amount;
+	    length -= amount;
+	    wakeReceivers(amount);
+	}
+	lock.release();
+    }
+
+    /**
+     * Send every item in <tt>items</tt>.
+     *
+     * @param	items	the items to send.
+     */
+    public void sendAll(T[] items) {
+	sendAll(items, 0, items.length);
+    }
+
+    /**
+     * Receive an item, blocking while the channel is empty.
+     *
+     * @return	the item that has been in the channel longest.
+     */
+    public T receive() {
+	lock.acquire();
+	waitForItems();
+	T item = element(head);
+	buffer[head] = null;
+	head = (head + 1) % buffer.length;
+	count--;
+	wakeSenders(1);
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Receive as many items as are in the channel, up to <tt>length</tt>,
+     * blocking only while the channel is empty.
+     *
+     * @param	items	the array to store the items in.
+     * @param	offset	the index at which to store the first item.
+     * @param	length	the most items to receive. Must be positive.
+     * @return	the number of items received, at least one.
+     */
+    public int receiveUpTo(T[] items, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 &&
+		       offset + length <= items.length);
+
+	lock.acquire();
+	waitForItems();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, items, offset, first);
+	System.arraycopy(buffer, 0, items, offset + first, amount - first);
+	clear(head, first);
+	clear(0, amount - first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+	wakeSenders(amount);
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Receive as many items as are in the channel, up to the length of
+     * <tt>items</tt>.
+     *
+     * @param	items	the array to store the items in.
+     * @return	the number of items received, at least one.
+     */
+    public int receiveUpTo(T[] items) {
+	return receiveUpTo(items, 0, items.length);
+    }
+
+    private void waitForSpace() {
+	while (count == buffer.length) {
+	    waitingSenders++;
+	    notFull.sleep();
+	}
+    }
+
+    private void waitForItems() {
+	while (count == 0) {
+	    waitingReceivers++;
+	    notEmpty.sleep();
+	}
+    }
+
+    /**
+     * Wake as many waiting receivers as there are new items for. The count
+     * of waiting threads is decremented by the waker, so that a thread is not
+     * woken twice before it gets to run.
+     */
+    private void wakeReceivers(int items) {
+	for (; items > 0 && waitingReceivers > 0; items--) {
+	    waitingReceivers--;
+	    notEmpty.wake();
+	}
+    }
+
+    private void wakeSenders(int slots) {
+	for (; slots > 0 && waitingSenders > 0; slots--) {
+	    waitingSenders--;
+	    notFull.wake();
+	}
+    }
+
+    /**
+     * Drop the references to items that have been received, so that they
+     * can be garbage collected.
+     */
+    private void clear(int from, int length) {
+	for (int i=from; i<from+length; i++)
+	    buffer[i] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T element(int index) {
+	return (T) buffer[index];
+    }
+
+    /**
+     * Sends <tt>count</tt> numbered items, alternating between
+     * <tt>send()</tt> and <tt>sendAll()</tt> runs of growing length.
+     */
+    private static class SenderTest implements Runnable {
+	SenderTest(Channel<Integer> channel, int id, int count,
+		   Semaphore done) {
+	    this.channel = channel;
+	    this.done = done;
+
+	    items = new Integer[count];
+	    for (int i=0; i<count; i++)
+		items[i] = id*count + i;
+	}
+
+	public void run() {
+	    int run = 1;
+	    for (int i=0; i<items.length; i+=run) {
+		run = Math.min(run % (channel.buffer.length + 3) + 1,
+			       items.length - i);
+		if (run == 1)
+		    channel.send(items[i]);
+		else
+		    channel.sendAll(items, i, run);
+	    }
+
+	    done.V();
+	}
+
+	private Channel<Integer> channel;
+	private Integer[] items;
+	private Semaphore done;
+    }
+
+    /**
+     * Receives <tt>quota</tt> items, alternating between <tt>receive()</tt>
+     * and <tt>receiveUpTo()</tt>, and checks that each is received once and
+     * that the items of each sender come in order.
+     */
+    private static class ReceiverTest implements Runnable {
+	ReceiverTest(Channel<Integer> channel, int quota, boolean[] received,
+		     int senders, Semaphore done) {
+	    this.channel = channel;
+	    this.quota = quota;
+	    this.received = received;
+	    this.done = done;
+
+	    last = new int[senders];
+	    for (int i=0; i<senders; i++)
+		last[i] = -1;
+	}
+
+	public void run() {
+	    Integer[] items = new Integer[channel.buffer.length + 2];
+	    int count = received.length / last.length;
+
+	    for (int i=0, up=1; i<quota; up=up%(items.length-1)+1) {
+		int amount;
+		if (up == 1) {
+		    items[1] = channel.receive();
+		    amount = 1;
+		}
+		else {
+		    amount = channel.receiveUpTo(items, 1,
+						 Math.min(up, quota - i));
+		}
+
+		for (int j=1; j<=amount; j++) {
+		    int item = items[j];
+		    Lib.assertTrue(!received[item]);
+		    received[item] = true;
+
+		    Lib.assertTrue(item % count > last[item / count]);
+		    last[item / count] = item % count;
+		}
+		i += amount;
+	    }
+
+	    done.V();
+	}
+
+	private Channel<Integer> channel;
+	private int quota;
+	private boolean[] received;
+	/** The last item received from each sender. */
+	private int[] last;
+	private Semaphore done;
+    }
+
+    /**
+     * Test this module with several senders and receivers on a small
+     * channel, so that the ring buffer wraps around in the middle of bulk
+     * transfers, and so that each transfer wakes several sleeping threads.
+     */
+    public static void selfTest() {
+	Channel<Integer> channel = new Channel<Integer>(5);
+	Semaphore done = new Semaphore(0);
+
+	int senders = 3, receivers = 2, count = 40;
+	boolean[] received = new boolean[senders * count];
+
+	// the receivers start first, so that they sleep on an empty channel
+	for (int i=0; i<receivers; i++) {
+	    int quota = senders*count / receivers;
+	    if (i == 0)
+		quota += senders*count % receivers;
+	    new KThread(new ReceiverTest(channel, quota, received, senders,
+					 done)).setName("receiver " + i).fork();
+	}
+	for (int i=0; i<senders; i++) {
+	    new KThread(new SenderTest(channel, i, count, done))
+		.setName("sender " + i).fork();
+	}
+
+	for (int i=0; i<senders + receivers; i++)
+	    done.P();
+
+	for (int i=0; i<received.length; i++)
+	    Lib.assertTrue(received[i]);
+	Lib.assertTrue(channel.count == 0);
+	Lib.assertTrue(channel.waitingReceivers == 0 &&
+		       channel.waitingSenders == 0);
+    }
+
+    private Object[] buffer;
+    /** The index of the oldest item, and the number of items. */
+    private int head = 0, count = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty, notFull;
+    /** The threads sleeping on each condition that no one has woken yet. */
+    private int waitingReceivers = 0, waitingSenders = 0;
+}
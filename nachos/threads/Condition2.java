@@ -21,8 +21,21 @@ public class Condition2 {
 	 *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
+		this(conditionLock, null);
+	}
+
+	/**
+	 * Allocate a new named condition variable.
+	 *
+	 * @param	conditionLock	the lock associated with this condition
+	 *				variable.
+	 * @param	name		the name to profile the condition variable
+	 *				under in <tt>LockProfiler</tt>.
+	 */
+	public Condition2(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
 		this.waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		this.profiler = LockProfiler.create("Condition2", name);
 	}
 
 	/**
@@ -34,12 +47,53 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
-		conditionLock.release();
+		// Release the lock and join the wait queue with interrupts disabled,
+		// so that a wake() from the next holder of the lock cannot run in
+		// between and be lost.
 		boolean lastInterruptState = Machine.interrupt().disable();
-		this.waitQueue.waitForAccess(KThread.currentThread());		
+		long requested = (profiler != null) ? Machine.timer().getTime() : 0;
+		conditionLock.release();
+		this.waitQueue.waitForAccess(KThread.currentThread());
 		KThread.currentThread().sleep();
+		if (profiler != null)
+			profiler.acquired(requested);
+		conditionLock.acquire();
 		Machine.interrupt().restore(lastInterruptState);
-		conditionLock.acquire();		
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but stop sleeping if no thread has woken this
+	 * one after <tt>ticks</tt> ticks. A thread that times out is taken off
+	 * the condition variable, so a later <tt>wake()</tt> wakes some other
+	 * thread instead. Either way, the associated lock is reacquired before
+	 * <tt>sleepFor()</tt> returns.
+	 *
+	 * @param	ticks	the most ticks to sleep. If not positive, the lock
+	 *			is released and reacquired without sleeping.
+	 * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 *		<tt>wakeAll()</tt>, <tt>false</tt> if it timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean woken = false;
+		boolean lastInterruptState = Machine.interrupt().disable();
+		conditionLock.release();
+		if (ticks > 0) {
+			long requested = (profiler != null) ? Machine.timer().getTime() : 0;
+			this.waitQueue.waitForAccess(KThread.currentThread());
+			woken = ThreadedKernel.alarm.sleepOn(this.waitQueue, ticks);
+			if (profiler != null) {
+				if (woken)
+					profiler.acquired(requested);
+				else
+					profiler.timedOut(requested);
+			}
+		}
+		conditionLock.acquire();
+		Machine.interrupt().restore(lastInterruptState);
+
+		return woken;
 	}
 
 	/**
@@ -73,4 +127,5 @@ public class Condition2 {
 
 	private Lock conditionLock;
 	private ThreadQueue waitQueue;
+	private LockProfiler profiler;
 }
@@ -0,0 +1,313 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.PriorityQueue;
+
+/**
+ * An earliest-deadline-first real-time scheduler.
+ *
+ * <p>
+ * A thread can be given an absolute deadline for its current job with
+ * <tt>setDeadline()</tt>, or made periodic with <tt>setPeriod()</tt>. Every
+ * queue dequeues the thread whose deadline is earliest. Threads without a
+ * deadline are served after all real-time threads, first come first served.
+ *
+ * <p>
+ * A thread calls <tt>finishJob()</tt> when its job is done. This records
+ * whether the deadline was met; the totals are printed when the machine
+ * halts. A periodic thread then sleeps
+ * on the alarm until its next release, and gets the deadline for that job.
+ * Since the alarm releases threads from the timer interrupt, a release can be
+ * late by up to one timer period. The timer interrupt preempts the current
+ * thread when a thread with an earlier deadline is ready.
+ *
+ * <p>
+ * As in <tt>MLFQScheduler</tt>, the ready queue is recognized as the queue
+ * that the first thread acquires. Deadlines are not inherited through locks.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new EDF thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored, since deadlines are not inherited.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue();
+	}
+
+	/**
+	 * Give the current job of a thread an absolute deadline, and make the
+	 * thread aperiodic. Must be called with interrupts disabled, and not on a
+	 * thread that is waiting on a queue.
+	 *
+	 * @param thread
+	 *            the thread.
+	 * @param deadline
+	 *            the time, in ticks, by which the job should finish, or
+	 *            <tt>noDeadline</tt>.
+	 */
+	public void setDeadline(KThread thread, long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.waitingOn == null);
+
+		state.deadline = deadline;
+		state.period = 0;
+	}
+
+	/**
+	 * Make a thread periodic. Its first job is released now, and each job
+	 * must finish within <tt>relativeDeadline</tt> ticks of its release.
+	 * Must be called with interrupts disabled, and not on a thread that is
+	 * waiting on a queue.
+	 *
+	 * @param thread
+	 *            the thread.
+	 * @param period
+	 *            the ticks between releases.
+	 * @param relativeDeadline
+	 *            the ticks after each release by which the job should finish.
+	 */
+	public void setPeriod(KThread thread, long period, long relativeDeadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && relativeDeadline > 0);
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.waitingOn == null);
+
+		state.period = period;
+		state.relativeDeadline = relativeDeadline;
+		state.release = Machine.timer().getTime();
+		state.deadline = state.release + relativeDeadline;
+	}
+
+	/**
+	 * Return the deadline of the current job of a thread.
+	 *
+	 * @param thread
+	 *            the thread.
+	 * @return the deadline in ticks, or <tt>noDeadline</tt>.
+	 */
+	public long getDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).deadline;
+	}
+
+	/**
+	 * End the current thread's job, and record whether it met its deadline.
+	 * A periodic thread then sleeps until its next release; if it has
+	 * overrun that, the next job is released at once. An aperiodic thread
+	 * is left without a deadline.
+	 */
+	public void finishJob() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		Lib.assertTrue(state.deadline != noDeadline);
+
+		long now = Machine.timer().getTime();
+		numRealTimeJobs++;
+		if (now > state.deadline)
+			numDeadlineMisses++;
+
+		if (state.period == 0) {
+			state.deadline = noDeadline;
+		}
+		else {
+			state.release += state.period;
+			if (state.release < now)
+				state.release = now;
+			state.deadline = state.release + state.relativeDeadline;
+
+			if (state.release > now)
+				ThreadedKernel.alarm.waitUntil(state.release - now);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Preempt the current thread if a thread with an earlier deadline is
+	 * ready.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null || readyQueue.waiters.isEmpty())
+			return false;
+
+		ThreadState current = getThreadState(KThread.currentThread());
+		ThreadState first = readyQueue.waiters.peek();
+		return first.deadline < current.deadline
+			|| (current.deadline == noDeadline && first.deadline == noDeadline);
+	}
+
+	/**
+	 * Return the number of real-time jobs that have finished.
+	 *
+	 * @return the number of calls to <tt>finishJob()</tt> so far.
+	 */
+	public int getRealTimeJobs() {
+		return numRealTimeJobs;
+	}
+
+	/**
+	 * Return the number of real-time jobs that finished after their
+	 * deadline.
+	 *
+	 * @return the number of deadline misses so far.
+	 */
+	public int getDeadlineMisses() {
+		return numDeadlineMisses;
+	}
+
+	/**
+	 * Print the number of real-time jobs that have finished, and how many of
+	 * them missed their deadline.
+	 */
+	public void print() {
+		if (numRealTimeJobs != 0)
+			System.out.println("Real-time jobs: " + numRealTimeJobs
+					+ ", deadline misses " + numDeadlineMisses);
+	}
+
+	/**
+	 * The deadline of a thread that has none.
+	 */
+	public static final long noDeadline = Long.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the thread with the earliest
+	 * deadline.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.waitingOn = this;
+			state.sequence = nextSequence++;
+			waiters.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (readyQueue == null)
+				readyQueue = this;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn == this) {
+				waiters.remove(state);
+				state.waitingOn = null;
+			}
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			waiters.remove(state);
+			state.waitingOn = null;
+			return true;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = waiters.poll();
+			if (next == null)
+				return null;
+
+			next.waitingOn = null;
+			return next.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (ThreadState s : waiters)
+				Lib.debug(dbgEDF, s.thread + ": deadline " + s.deadline);
+		}
+
+		/** The waiting threads, as a heap ordered by deadline. */
+		PriorityQueue<ThreadState> waiters = new PriorityQueue<ThreadState>();
+		/** Breaks ties between equal deadlines in order of arrival. */
+		private long nextSequence = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: the deadline of its current job, its
+	 * period if it has one, and the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(ThreadState other) {
+			if (deadline != other.deadline)
+				return (deadline < other.deadline) ? -1 : 1;
+			if (sequence != other.sequence)
+				return (sequence < other.sequence) ? -1 : 1;
+			return 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The absolute deadline of the current job. */
+		protected long deadline = noDeadline;
+		/** The period, or 0 if the thread is aperiodic. */
+		protected long period = 0;
+		/** The deadline of each job, relative to its release. */
+		protected long relativeDeadline;
+		/** The release time of the current job. */
+		protected long release;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected EDFQueue waitingOn = null;
+		/** The arrival order of this thread in <tt>waitingOn</tt>. */
+		protected long sequence;
+	}
+
+	/** The queue of threads waiting for the processor. */
+	private EDFQueue readyQueue = null;
+	/** The number of real-time jobs that have finished. */
+	private int numRealTimeJobs = 0;
+	/** The number of those jobs that finished after their deadline. */
+	private int numDeadlineMisses = 0;
+
+	private static final char dbgEDF = 'e';
+}
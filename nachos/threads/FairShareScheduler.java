@@ -0,0 +1,269 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.TreeSet;
+
+/**
+ * A fair-share scheduler in the style of Linux's completely fair scheduler.
+ *
+ * <p>
+ * Every thread has a <i>virtual runtime</i>: the clock ticks it has spent on
+ * the processor, scaled down by its weight. The weight is the thread's
+ * priority, so a thread with twice the weight of another is charged half as
+ * much per tick, and gets twice the processor time. Each queue keeps its
+ * waiters in a balanced tree ordered by virtual runtime, and always dequeues
+ * the thread that has had the least, in O(log n) time. Ties go to the thread
+ * that joined first.
+ *
+ * <p>
+ * A thread that wakes up after sleeping is placed no earlier than the
+ * largest virtual runtime the ready queue has already dispatched, so that it
+ * cannot monopolize the processor to make up for time it did not want. The timer interrupt
+ * preempts the current thread once it is more than
+ * <tt>FairShareScheduler.granularity</tt> ticks of virtual runtime ahead of
+ * the first ready thread.
+ *
+ * <p>
+ * As in <tt>MLFQScheduler</tt>, the ready queue is recognized as the queue
+ * that the first thread acquires, and the current thread is charged when it
+ * leaves the processor and at every timer interrupt.
+ */
+public class FairShareScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair-share scheduler.
+	 */
+	public FairShareScheduler() {
+		granularity = Config.getInteger("FairShareScheduler.granularity", 1000);
+		Lib.assertTrue(granularity >= 0);
+	}
+
+	/**
+	 * Allocate a new fair-share thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored, since this scheduler does not donate weight.
+	 * @return a new fair-share thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairShareQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+			&& priority <= priorityMaximum);
+
+		getThreadState(thread).weight = priority;
+	}
+
+	/**
+	 * Charge the current thread, and preempt it once it is more than the
+	 * granularity ahead of the first ready thread.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState current = getThreadState(KThread.currentThread());
+		current.charge(Machine.timer().getTime());
+
+		if (readyQueue == null || readyQueue.waiters.isEmpty())
+			return false;
+		return current.vruntime - readyQueue.waiters.first().vruntime > granularity;
+	}
+
+	/**
+	 * The default weight of a thread.
+	 */
+	public static final int priorityDefault = 1024;
+	/**
+	 * The minimum weight a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum weight a thread can have.
+	 */
+	public static final int priorityMaximum = 1 << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the thread with the least virtual
+	 * runtime.
+	 */
+	protected class FairShareQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// The current thread is about to leave the processor, so charge
+			// it now, while it is still outside every tree.
+			ThreadState state = getThreadState(thread);
+			if (thread == KThread.currentThread())
+				state.charge(Machine.timer().getTime());
+			else if (this == readyQueue && state.vruntime < minVruntime)
+				state.vruntime = minVruntime;
+			add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (readyQueue == null)
+				readyQueue = this;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn == this)
+				remove(state);
+			if (this == readyQueue)
+				state.dispatchTime = Machine.timer().getTime();
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * On the ready queue, a current thread that is not waiting anywhere
+		 * (it is sleeping on the alarm, or finishing) is charged for its run
+		 * before the next one is picked. One that is waiting was charged
+		 * when it joined that queue.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (this == readyQueue) {
+				ThreadState current = getThreadState(KThread.currentThread());
+				if (current.waitingOn == null)
+					current.charge(Machine.timer().getTime());
+			}
+
+			if (waiters.isEmpty())
+				return null;
+
+			ThreadState next = waiters.first();
+			if (next.vruntime > minVruntime)
+				minVruntime = next.vruntime;
+			acquire(next.thread);
+			return next.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (ThreadState s : waiters)
+				Lib.debug(dbgFair, s.thread + ": vruntime " + s.vruntime
+					  + ", weight " + s.weight);
+		}
+
+		private void add(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.waitingOn = this;
+			state.sequence = nextSequence++;
+			waiters.add(state);
+		}
+
+		private void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			waiters.remove(state);
+			state.waitingOn = null;
+		}
+
+		/** The waiting threads, ordered by virtual runtime. */
+		TreeSet<ThreadState> waiters = new TreeSet<ThreadState>();
+		/** The largest virtual runtime this queue has dispatched. */
+		long minVruntime = 0;
+		/** Breaks ties between equal virtual runtimes in order of arrival. */
+		private long nextSequence = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its weight, its virtual runtime, and
+	 * the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.dispatchTime = Machine.timer().getTime();
+		}
+
+		/**
+		 * Add the ticks since the last charge, scaled by the weight, to the
+		 * virtual runtime. Must not be called while in a queue's tree, since
+		 * the tree is ordered by virtual runtime. The remainder of the
+		 * division is carried over, so that a heavy thread charged a few
+		 * ticks at a time still falls behind at the right rate.
+		 */
+		void charge(long now) {
+			long scaled = (now - dispatchTime) * priorityDefault + remainder;
+			vruntime += scaled / weight;
+			remainder = scaled % weight;
+			dispatchTime = now;
+		}
+
+		public int compareTo(ThreadState other) {
+			if (vruntime != other.vruntime)
+				return (vruntime < other.vruntime) ? -1 : 1;
+			if (sequence != other.sequence)
+				return (sequence < other.sequence) ? -1 : 1;
+			return 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The weight of the associated thread. */
+		protected int weight = priorityDefault;
+		/** The weighted ticks this thread has run for. */
+		protected long vruntime = 0;
+		/** Weighted ticks not yet large enough to add to the runtime. */
+		protected long remainder = 0;
+		/** When the ticks this thread has run for were last charged. */
+		protected long dispatchTime;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected FairShareQueue waitingOn = null;
+		/** The arrival order of this thread in <tt>waitingOn</tt>. */
+		protected long sequence;
+	}
+
+	/** The virtual runtime lead that triggers preemption. */
+	private long granularity;
+	/** The queue of threads waiting for the processor. */
+	private FairShareQueue readyQueue = null;
+
+	private static final char dbgFair = 'f';
+}
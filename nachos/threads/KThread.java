@@ -47,7 +47,9 @@ public class KThread {
             tcb = new TCB();
         }
         else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+            accounting = Config.getBoolean("KThread.accounting", false);
+
+            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
             readyQueue.acquire(this);           
 
             currentThread = this;
@@ -58,6 +60,11 @@ public class KThread {
             createIdleThread();
         }
         this.joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+        if (accounting) {
+            reserveAccounting(id);
+            accountedNames[id] = name;
+        }
     }
 
     /**
@@ -92,6 +99,8 @@ public class KThread {
      */
     public KThread setName(String name) {
         this.name = name;
+        if (accounting)
+            accountedNames[id] = name;
         return this;
     }
 
@@ -234,6 +243,38 @@ public class KThread {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Relinquish the CPU because the timer interrupt has preempted the current
+     * thread. The same as <tt>yield()</tt>, except that the switch is
+     * accounted as involuntary.
+     */
+    public static void preempt() {
+        preempting = true;
+        KThread.yield();
+    }
+
+    /**
+     * Run the next ready thread, or, if there is none, let simulated time skip
+     * straight to the next pending interrupt instead of advancing it one
+     * <tt>yield()</tt> at a time. Called repeatedly by the idle thread.
+     */
+    private static void idle() {
+        Lib.assertTrue(currentThread == idleThread);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread nextThread = readyQueue.nextThread();
+        if (nextThread != null) {
+            currentThread.ready();
+            nextThread.run();
+        }
+        else {
+            Machine.interrupt().idle();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Relinquish the CPU, because the current thread has either finished or it
      * is blocked. This thread must be the current thread.
@@ -253,6 +294,13 @@ public class KThread {
         if (currentThread.status != statusFinished)
             currentThread.status = statusBlocked;
 
+        if (accounting) {
+            int id = currentThread.id;
+            long now = Machine.timer().getTime();
+            runTicks[id] += now - lastSwitch[id];
+            lastSwitch[id] = now;
+        }
+
         runNextThread();
     }
 
@@ -270,6 +318,13 @@ public class KThread {
         if (this != idleThread)
             readyQueue.waitForAccess(this);
 
+        if (accounting) {
+            long now = Machine.timer().getTime();
+            if (this == currentThread)
+                runTicks[id] += now - lastSwitch[id];
+            lastSwitch[id] = now;
+        }
+
         Machine.autoGrader().readyThread(this);
     }
 
@@ -286,7 +341,7 @@ public class KThread {
 
         boolean intStatus = Machine.interrupt().disable();
 
-        if (currentThread.status != statusFinished) {
+        if (status != statusFinished) {
             this.joinQueue.waitForAccess(currentThread);
             currentThread.sleep();
         }
@@ -302,12 +357,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>KThread.idleFastForward</tt> is set in the configuration, the idle
+     * thread does not spin; see <tt>idle()</tt>.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
 
+        final boolean fastForward =
+            Config.getBoolean("KThread.idleFastForward", false);
+
         idleThread = new KThread(new Runnable() {
-            public void run() { while (true) yield(); }
+            public void run() {
+                while (true) {
+                    if (fastForward)
+                        idle();
+                    else
+                        yield();
+                }
+            }
         });
         idleThread.setName("idle");
 
@@ -353,6 +422,25 @@ public class KThread {
 
         Machine.yield();
 
+        if (accounting) {
+            long now = Machine.timer().getTime();
+            readyTicks[id] += now - lastSwitch[id];
+            lastSwitch[id] = now;
+
+            // a thread that yields may be picked again, without a switch
+            if (this != currentThread) {
+                dispatches[id]++;
+                if (preempting)
+                    involuntarySwitches[currentThread.id]++;
+                else
+                    voluntarySwitches[currentThread.id]++;
+            }
+        }
+        preempting = false;
+
+        if (ThreadedKernel.alarm != null)
+            ThreadedKernel.alarm.dispatch(this == idleThread);
+
         currentThread.saveState();
 
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -396,6 +484,77 @@ public class KThread {
         Lib.assertTrue(this == currentThread);
     }
 
+    /**
+     * Make room in the accounting arrays for the thread with the specified
+     * ID. The arrays grow here, when a thread is created, so that accounting
+     * in <tt>ready()</tt>, <tt>run()</tt> and <tt>sleep()</tt> never
+     * allocates.
+     */
+    private static void reserveAccounting(int id) {
+        if (id < lastSwitch.length)
+            return;
+
+        int capacity = Math.max(lastSwitch.length * 2, 64);
+        while (capacity <= id)
+            capacity *= 2;
+
+        lastSwitch = grow(lastSwitch, capacity);
+        readyTicks = grow(readyTicks, capacity);
+        runTicks = grow(runTicks, capacity);
+        dispatches = grow(dispatches, capacity);
+        voluntarySwitches = grow(voluntarySwitches, capacity);
+        involuntarySwitches = grow(involuntarySwitches, capacity);
+
+        String[] names = new String[capacity];
+        System.arraycopy(accountedNames, 0, names, 0, accountedNames.length);
+        accountedNames = names;
+    }
+
+    private static long[] grow(long[] array, int capacity) {
+        long[] result = new long[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * Print, for every thread that has run, the ticks it spent waiting on the
+     * ready queue and running, and how often it was dispatched and switched
+     * out. Does nothing unless <tt>KThread.accounting</tt> is set in the
+     * configuration. Called through the halt handler that
+     * <tt>ThreadedKernel</tt> sets, when the machine halts.
+     */
+    public static void printAccounting() {
+        if (!accounting)
+            return;
+
+        long now = Machine.timer().getTime();
+
+        System.out.println("Thread accounting, in ticks:");
+        for (int id=0; id<numCreated; id++) {
+            if (dispatches[id] == 0 && id != 0)
+                continue;
+
+            long running = runTicks[id];
+            if (currentThread != null && id == currentThread.id)
+                running += now - lastSwitch[id];
+
+            System.out.println(accountedNames[id] + " (#" + id + "): "
+                + "ready " + readyTicks[id]
+                + " (mean " + (dispatches[id] == 0 ? 0 :
+                               readyTicks[id] / dispatches[id]) + ")"
+                + ", running " + running
+                + ", dispatches " + dispatches[id]
+                + ", switches: voluntary " + voluntarySwitches[id]
+                + ", involuntary " + involuntarySwitches[id]);
+        }
+    }
+
     private static class PingTest implements Runnable {
         PingTest(int which) {
             this.which = which;
@@ -504,6 +663,21 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
+    /**
+     * Per-thread scheduling accounting, indexed by thread ID, kept only if
+     * <tt>KThread.accounting</tt> is set. <tt>lastSwitch</tt> is when the
+     * thread last became ready, was dispatched, or left the processor.
+     */
+    private static boolean accounting = false;
+    private static boolean preempting = false;
+    private static long[] lastSwitch = new long[0];
+    private static long[] readyTicks = new long[0];
+    private static long[] runTicks = new long[0];
+    private static int[] dispatches = new int[0];
+    private static int[] voluntarySwitches = new int[0];
+    private static int[] involuntarySwitches = new int[0];
+    private static String[] accountedNames = new String[0];
+
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
@@ -555,7 +729,7 @@ public class KThread {
         @Override
         public void run() {
             Lib.debug(dbgCommunication, "SPEAKER: Speaker wait by: 1000 ms");
-            Alarm alarm = new Alarm();
+            Alarm alarm = ThreadedKernel.alarm;
             //alarm.waitUntil(1000);
             Lib.debug(dbgCommunication, "SPEAKER: Trying to send a word: " + this.word);
             this.communicator.speak(this.word);
@@ -583,7 +757,7 @@ public class KThread {
                     int ms = 10;
                     Lib.debug(dbgWaitUntil, "THREAD #" + which + ": now is waiting for " + ms + " ms. ");
                     Lib.debug(dbgWaitUntil, "THREAD #" + which + ": current time: " + Machine.timer().getTime());
-                    Alarm alarm = new Alarm();
+                    Alarm alarm = ThreadedKernel.alarm;
                     alarm.waitUntil(ms);
                     Lib.debug(dbgWaitUntil, "THREAD #" + which + ": Thread has been awakened: " + Machine.timer().getTime());
                 }
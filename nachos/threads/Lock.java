@@ -15,15 +15,32 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>tryAcquire()</tt> is a form of <tt>acquire()</tt> that gives up after a
+ * given number of ticks.
+ *
+ * <p>
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock can be given a name, under which <tt>LockProfiler</tt> reports it.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named lock. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name to profile the lock under.
+     */
+    public Lock(String name) {
+	profiler = LockProfiler.create("Lock", name);
     }
 
     /**
@@ -37,12 +54,17 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long requested = (profiler != null) ? Machine.timer().getTime() : 0;
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    if (profiler != null)
+		profiler.acquired(requested);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    if (profiler != null)
+		profiler.acquired();
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +72,47 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, unless it is still busy after
+     * <tt>timeout</tt> ticks. The current thread must not already hold this
+     * lock. While it waits, the current thread donates priority to the holder
+     * just as in <tt>acquire()</tt>, and stops when it gives up.
+     *
+     * @param	timeout	the most ticks to wait. If not positive, the lock is
+     *			only acquired if it is free now.
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    if (profiler != null)
+		profiler.acquired();
+	}
+	else if (timeout > 0) {
+	    long requested = (profiler != null) ? Machine.timer().getTime() : 0;
+	    waitQueue.waitForAccess(thread);
+	    boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, timeout);
+	    if (profiler != null) {
+		if (woken)
+		    profiler.acquired(requested);
+		else
+		    profiler.timedOut(requested);
+	    }
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,6 +121,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profiler != null)
+	    profiler.released();
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -73,6 +139,7 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    private LockProfiler profiler;
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
@@ -0,0 +1,163 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Contention statistics for one <tt>Lock</tt>, <tt>Semaphore</tt> or
+ * <tt>Condition2</tt>, kept only if <tt>LockProfiler.enabled</tt> is set in
+ * the configuration.
+ *
+ * <p>
+ * While profiling is enabled, each of these primitives gets a profiler when
+ * it is allocated, and reports to it, with interrupts disabled, as threads
+ * get through it. Otherwise the primitive has no profiler at all. Then the
+ * only cost is a test of that field for <tt>null</tt>; no time is read and
+ * no string is built.
+ *
+ * <p>
+ * A profiler counts acquisitions: of a lock, <tt>P()</tt>s of a semaphore,
+ * and sleeps on a condition variable. It also counts the contended ones,
+ * which had to wait, and the ticks spent waiting, in total and at most. For a
+ * lock, it also totals the ticks the lock was held, and the longest hold. The
+ * waits of timed operations that gave up are counted too, though they
+ * acquired nothing.
+ *
+ * <p>
+ * When the machine halts, the <tt>LockProfiler.top</tt> primitives
+ * (10 by default) that were waited for longest in total are printed, through
+ * the halt handler that <tt>ThreadedKernel</tt> sets. A primitive can be
+ * given a name to recognize it by in this report; unnamed ones are numbered
+ * in order of allocation.
+ */
+public class LockProfiler {
+    /**
+     * Allocate a profiler for a new primitive, if profiling is enabled.
+     *
+     * @param	kind	the class of the primitive.
+     * @param	name	the name of the primitive, or <tt>null</tt>.
+     * @return	the new profiler, or <tt>null</tt> if profiling is disabled.
+     */
+    static LockProfiler create(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	LockProfiler profiler = new LockProfiler(kind, name, profilers.size());
+	profilers.add(profiler);
+	return profiler;
+    }
+
+    private LockProfiler(String kind, String name, int id) {
+	this.kind = kind;
+	this.name = name;
+	this.id = id;
+    }
+
+    /**
+     * Record an acquisition that did not have to wait.
+     */
+    void acquired() {
+	acquisitions++;
+	heldSince = Machine.timer().getTime();
+    }
+
+    /**
+     * Record an acquisition that had to wait.
+     *
+     * @param	requested	the time at which the thread started waiting.
+     */
+    void acquired(long requested) {
+	acquisitions++;
+	heldSince = waited(requested);
+    }
+
+    /**
+     * Record a timed wait that gave up without acquiring anything.
+     *
+     * @param	requested	the time at which the thread started waiting.
+     */
+    void timedOut(long requested) {
+	waited(requested);
+    }
+
+    /**
+     * Record the release of a lock acquired since the last release.
+     */
+    void released() {
+	long hold = Machine.timer().getTime() - heldSince;
+	releases++;
+	holdTicks += hold;
+	maxHold = Math.max(maxHold, hold);
+    }
+
+    private long waited(long requested) {
+	long now = Machine.timer().getTime();
+	long wait = now - requested;
+	contended++;
+	waitTicks += wait;
+	maxWait = Math.max(maxWait, wait);
+	return now;
+    }
+
+    /**
+     * Return a description of the profiled primitive, for the report.
+     *
+     * @return	the kind of primitive and its name or number.
+     */
+    public String toString() {
+	return kind + " " + (name != null ? name : "#" + id);
+    }
+
+    /**
+     * Print the statistics of the primitives that were waited for longest.
+     * Does nothing unless <tt>LockProfiler.enabled</tt> is set in the
+     * configuration. Called when the machine halts.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	int top = Config.getInteger("LockProfiler.top", 10);
+
+	LockProfiler[] sorted =
+	    profilers.toArray(new LockProfiler[profilers.size()]);
+	Arrays.sort(sorted, new Comparator<LockProfiler>() {
+		public int compare(LockProfiler a, LockProfiler b) {
+		    if (a.waitTicks != b.waitTicks)
+			return (a.waitTicks > b.waitTicks) ? -1 : 1;
+		    return a.id - b.id;
+		}
+	    });
+
+	System.out.println("Lock contention, in ticks (top " +
+			   Math.min(top, sorted.length) + " of " +
+			   sorted.length + " by time waited):");
+	for (int i=0; i<top && i<sorted.length; i++) {
+	    LockProfiler p = sorted[i];
+
+	    String line = p + ": acquisitions " + p.acquisitions
+		+ ", contended " + p.contended
+		+ ", waited " + p.waitTicks + " (max " + p.maxWait + ")";
+	    if (p.releases > 0)
+		line += ", held " + p.holdTicks + " (max " + p.maxHold + ")";
+	    System.out.println(line);
+	}
+    }
+
+    private static final boolean enabled =
+	Config.getBoolean("LockProfiler.enabled", false);
+    private static ArrayList<LockProfiler> profilers =
+	new ArrayList<LockProfiler>();
+
+    private String kind, name;
+    private int id;
+
+    private long acquisitions = 0, contended = 0, releases = 0;
+    private long waitTicks = 0, maxWait = 0;
+    private long holdTicks = 0, maxHold = 0;
+    /** When the current holder acquired the primitive. */
+    private long heldSince;
+}
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Random;
 /**
  * A scheduler that chooses threads using a lottery.
@@ -46,10 +42,21 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return	a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me		
 		return new LotteryQueue(transferPriority);
 	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+			&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
 	
+	/** Incremented by every <tt>addTickets()</tt> walk. */
+	private int walkStamp = 0;
+
 	protected ThreadState getThreadState(KThread thread) {
 		if (thread.schedulingState == null)
 			thread.schedulingState = new ThreadState(thread);
@@ -57,97 +64,257 @@ public class LotteryScheduler extends PriorityScheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
-	protected class LotteryQueue extends PriorityQueue {						
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiters. Each
+	 * waiter owns a slot in a Fenwick tree of effective ticket counts, so a
+	 * draw, an arrival, a departure and a change in a waiter's tickets are
+	 * all O(log n) in the number of waiters.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
 		private Random r;
-		private LotteryScheduler.ThreadState lockHolder;
 
 		public LotteryQueue(boolean transferPriority) {
 			super(transferPriority);
 			this.r = new Random();
 		}
-		
+
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			getThreadState(thread).waitForAccess(this);									
+			getThreadState(thread).waitForAccess(this);
 		}
 
-		public int getEffectivePriority() {
-			int effectivePriority = priorityMinimum;
-			for(KThread kt : this.waitQueue) {
-				ThreadState ts = getThreadState(kt);
-				effectivePriority += ts.getEffectivePriority();
-			}
-			
-			return effectivePriority;
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
 		}
 
-		public void acquire(KThread thread) {
+		public void setOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingFor != this);
+			state.acquire(this);
+		}
+
+		public void addOwner(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			ThreadState ts = getThreadState(thread);
 
-			/*if (this.lockHolder != null && this.transferPriority) {								
-				this.lockHolder.holdResources.remove(this); //I am no longer a slave!
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingFor != this);
+
+			if (lockHolder == null) {
+				state.acquire(this);
 			}
-*/
-			this.lockHolder = ts; //I am the Lord!
-			ts.acquire(this);
+			else if (state != lockHolder && !coOwners.contains(state)) {
+				coOwners.add(state);
+				state.donationQueue.add(this);
+				if (transferPriority)
+					state.addTickets(total);
+			}
+		}
+
+		public void removeOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state == lockHolder)
+				lockHolder = coOwners.pollFirst();
+			else if (!coOwners.remove(state))
+				return;
+			state.donationQueue.remove(this);
+			if (transferPriority)
+				state.addTickets(-total);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingFor != this)
+				return false;
+
+			remove(state);
+			return true;
 		}
-		
+
 		/**
 		 * Inspired on:
-		 * http://pages.cs.wisc.edu/~remzi/OSTEP/cpu-sched-lottery.pdf		  
+		 * http://pages.cs.wisc.edu/~remzi/OSTEP/cpu-sched-lottery.pdf
 		 */
-		 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			
-			if (this.waitQueue.isEmpty()) {                
-                Lib.debug('a', "Size: " + this.waitQueue.size());
-                return null;
-            }
-
-            if (this.lockHolder != null) {
-            	this.lockHolder.holdResources.remove(this);
-				this.lockHolder = null;	
-            }
-			
-
-			//Aplicar la loteria y retornar el elegido!
-			Lib.debug('a', "Size: " + this.waitQueue.size());
-			int winner = r.nextInt(this.getEffectivePriority()) + 1;
-			Lib.debug('a', "effectivePriority : " + this.getEffectivePriority());
-			int counter = 0;				
-			
-			KThread nextThread = null;
-			for(KThread kt : this.waitQueue) {
-				ThreadState ts = getThreadState(kt);
-				counter += ts.getEffectivePriority();
-				Lib.debug('a', "counter : " + counter + " winner" + winner);
-				if (counter >= winner) {
-					nextThread = kt;
-					break;
-				}
+
+			if (lockHolder != null)
+				release();
+
+			if (size == 0)
+				return null;
+
+			Lib.assertTrue(total > 0);
+			long winner = (total <= Integer.MAX_VALUE) ?
+				r.nextInt((int) total) : (r.nextLong() >>> 1) % total;
+			Lib.debug('a', "Size: " + size + " tickets: " + total
+				  + " winner: " + winner);
+
+			ThreadState nextThread = slots[find(winner)];
+			nextThread.acquire(this);
+			return nextThread.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (int i = 1; i <= capacity; i++)
+				if (slots[i] != null)
+					Lib.debug('a', slots[i].thread + ": " + slots[i].tickets);
+		}
+
+		/**
+		 * Give up the current owners' claim on this queue, taking back
+		 * the tickets its waiters were donating to them.
+		 */
+		void release() {
+			ThreadState holder = (ThreadState) lockHolder;
+			lockHolder = null;
+			holder.donationQueue.remove(this);
+			if (transferPriority)
+				holder.addTickets(-total);
+
+			while (!coOwners.isEmpty()) {
+				ThreadState owner = (ThreadState) coOwners.removeFirst();
+				owner.donationQueue.remove(this);
+				if (transferPriority)
+					owner.addTickets(-total);
 			}
+		}
+
+		/**
+		 * Pass a change of <tt>delta</tt> in the tickets of the waiters
+		 * on to every owner.
+		 */
+		void donate(long delta) {
+			if (!transferPriority || lockHolder == null)
+				return;
 
-			if (nextThread != null) {
-				this.waitQueue.remove(nextThread);
-				this.acquire(nextThread);	
-			}			
-			return nextThread;
+			((ThreadState) lockHolder).addTickets(delta);
+			if (!coOwners.isEmpty())
+				for (PriorityScheduler.ThreadState owner : coOwners)
+					((ThreadState) owner).addTickets(delta);
 		}
-				
-    	public void print() {
-			
+
+		/**
+		 * Give <tt>state</tt> a slot, and its tickets to the holder.
+		 */
+		void insert(ThreadState state) {
+			if (freeCount == 0) {
+				if (highWater == capacity)
+					grow();
+				freeSlots[freeCount++] = ++highWater;
+			}
+			state.slot = freeSlots[--freeCount];
+			state.waitingFor = this;
+			slots[state.slot] = state;
+			size++;
+			update(state.slot, state.tickets);
+
+			donate(state.tickets);
+		}
+
+		/**
+		 * Free the slot of <tt>state</tt>, which must be waiting here.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingFor == this);
+
+			update(state.slot, -state.tickets);
+			slots[state.slot] = null;
+			freeSlots[freeCount++] = state.slot;
+			size--;
+			state.waitingFor = null;
+
+			donate(-state.tickets);
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to slot <tt>i</tt>.
+		 */
+		void update(int i, long delta) {
+			total += delta;
+			for (; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot holding ticket number <tt>ticket</tt>, counting
+		 * from zero across the slots in order.
+		 */
+		private int find(long ticket) {
+			int pos = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (pos + step <= capacity && tree[pos + step] <= ticket) {
+					pos += step;
+					ticket -= tree[pos];
+				}
+			}
+			return pos + 1;
 		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			capacity *= 2;
+
+			ThreadState[] newSlots = new ThreadState[capacity + 1];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+			slots = newSlots;
+
+			int[] newFree = new int[capacity];
+			System.arraycopy(freeSlots, 0, newFree, 0, freeCount);
+			freeSlots = newFree;
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					tree[i] += slots[i].tickets;
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** The number of slots; always a power of two. */
+		private int capacity = 8;
+		/** Fenwick tree over the slots, indexed from 1. */
+		private long[] tree = new long[capacity + 1];
+		/** The waiter in each slot, or <tt>null</tt>. */
+		private ThreadState[] slots = new ThreadState[capacity + 1];
+		/** Slots below <tt>highWater</tt> that have been freed. */
+		private int[] freeSlots = new int[capacity];
+		private int freeCount = 0;
+		/** The highest slot ever handed out. */
+		private int highWater = 0;
+		/** The number of waiters, and the sum of their tickets. */
+		private int size = 0;
+		private long total = 0;
+		/** Set while a change is passed on to the other owners. */
+		private boolean sharing = false;
 	}
 
 	protected class ThreadState extends PriorityScheduler.ThreadState {
-		protected LinkedList<LotteryQueue> holdResources = new LinkedList<LotteryQueue>();
 		protected LotteryQueue waitingFor;
+		/** This thread's slot in <tt>waitingFor</tt>. */
+		protected int slot;
+		/**
+		 * The cached effective tickets: this thread's own, plus those of
+		 * every thread waiting on a queue it owns that transfers tickets.
+		 */
+		protected long tickets;
+		/** The last <tt>addTickets()</tt> walk that passed this thread. */
+		private int stamp = 0;
 
 		public ThreadState(KThread thread) {
 			super(thread);
-			this.effectivePriority = priorityMinimum;
+			this.tickets = this.priority;
 		}
 
 		public int getPriority() {
@@ -155,42 +322,69 @@ public class LotteryScheduler extends PriorityScheduler {
 		}
 
 		public int getEffectivePriority() {
-			for (LotteryQueue pq : holdResources) {				
-				this.effectivePriority += pq.getEffectivePriority();
-			}
-
-
-			PriorityQueue queue = (PriorityQueue) this.thread.getJoinQueue();
-			if (queue != null && queue.transferPriority) {
-				for (KThread t : queue.waitQueue) {					
-					int p = getThreadState(t).getEffectivePriority();					
-					effectivePriority += p;						
-				}
-			}			
-						return this.effectivePriority;
+			return (int) Math.min(tickets, Integer.MAX_VALUE);
 		}
 
 		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
 			this.priority = priority;
+			addTickets(delta);
 		}
 
 		public void waitForAccess(LotteryQueue waitQueue) {
-		    Lib.assertTrue(Machine.interrupt().disabled());			
-			waitQueue.waitQueue.add(this.thread);
-			this.waitingFor = waitQueue;
-
-			 if (holdResources.indexOf(waitQueue) != -1) {
-            	holdResources.remove(waitQueue);
-            	waitQueue.lockHolder = null;
-        	}			
+			Lib.assertTrue(Machine.interrupt().disabled());
+			if (waitQueue.lockHolder == this)
+				waitQueue.release();
+			waitQueue.insert(this);
 		}
 
 		public void acquire(LotteryQueue waitQueue) {
-		    Lib.assertTrue(Machine.interrupt().disabled());
-			this.holdResources.add(waitQueue);
-			if (waitQueue == this.waitingFor) {
-				this.waitingFor = null;
-			} 
+			Lib.assertTrue(Machine.interrupt().disabled());
+			if (waitQueue.lockHolder != null)
+				waitQueue.release();
+			if (waitingFor == waitQueue)
+				waitQueue.remove(this);
+
+			waitQueue.lockHolder = this;
+			this.donationQueue.add(waitQueue);
+			if (waitQueue.transferPriority)
+				addTickets(waitQueue.total);
 		}
-	}			
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of this thread and pass
+		 * it on along the chain of holders it is waiting behind. Tickets add
+		 * up rather than taking the maximum, so the same delta applies at
+		 * every step. Each walk stamps the threads it passes, so a deadlock
+		 * cycle is only counted once. At a queue with several owners,
+		 * each owner besides the holder gets a walk of its own, since
+		 * every one of them counts the tickets; a cycle back into the
+		 * same queue does not branch again.
+		 */
+		void addTickets(long delta) {
+			int stamp = ++walkStamp;
+			ThreadState state = this;
+			while (delta != 0 && state.stamp != stamp) {
+				state.stamp = stamp;
+				state.tickets += delta;
+
+				LotteryQueue queue = state.waitingFor;
+				if (queue == null)
+					return;
+				queue.update(state.slot, delta);
+				if (!queue.transferPriority || queue.lockHolder == null)
+					return;
+				if (!queue.coOwners.isEmpty() && !queue.sharing) {
+					queue.sharing = true;
+					for (PriorityScheduler.ThreadState owner : queue.coOwners)
+						((ThreadState) owner).addTickets(delta);
+					queue.sharing = false;
+				}
+				state = (ThreadState) queue.lockHolder;
+			}
+		}
+	}
 }
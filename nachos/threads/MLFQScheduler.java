@@ -0,0 +1,329 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A multilevel feedback queue scheduler, which orders threads by how they
+ * have used the processor rather than by an assigned priority.
+ *
+ * <p>
+ * There are several levels, level 0 being the most urgent, and each level
+ * has a quantum of clock ticks, read from <tt>MLFQScheduler.quanta</tt> as a
+ * comma-separated list. A thread is dequeued from the highest non-empty
+ * level, first come first served within it. A thread that runs for its whole
+ * quantum at a level is demoted one level; a thread that blocks before using
+ * it up is promoted one level. Every <tt>MLFQScheduler.boostInterval</tt>
+ * ticks, every thread is moved back to level 0, so that CPU-bound threads at
+ * the bottom still make progress.
+ *
+ * <p>
+ * The timer interrupt only preempts the current thread once its quantum has
+ * expired, or when a thread on a higher level becomes ready. The ready queue
+ * is recognized as the queue that the first thread acquires when
+ * <tt>KThread</tt> hands it the processor. Priority is not donated: a level
+ * describes a thread's past behaviour, not its importance.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler, reading its levels from
+	 * <tt>nachos.conf</tt>.
+	 */
+	public MLFQScheduler() {
+		String[] fields = Config.getString("MLFQScheduler.quanta",
+						   "1000,2000,4000").split(",");
+		Lib.assertTrue(fields.length <= 32, "too many MLFQ levels");
+
+		quanta = new long[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			try {
+				quanta[i] = Long.parseLong(fields[i].trim());
+			}
+			catch (NumberFormatException e) {
+				Lib.assertNotReached("MLFQScheduler.quanta should be a list of integers");
+			}
+			Lib.assertTrue(quanta[i] > 0);
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+		Lib.assertTrue(boostInterval > 0);
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored, since this scheduler does not donate priority.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the priority of a thread: the number of levels below the one it
+	 * is on, so that threads on level 0 have the highest priority.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return quanta.length - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the current thread for the time since it was dispatched, boost
+	 * every thread back to level 0 if the boost interval has passed, and ask
+	 * for preemption only if the current thread's quantum has expired or a
+	 * thread on a higher level is ready.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+		if (now >= nextBoost) {
+			boost();
+			nextBoost = now + boostInterval;
+		}
+
+		ThreadState current = getThreadState(KThread.currentThread());
+		current.charge(now);
+
+		int level = current.getLevel();
+		if (readyQueue != null && readyQueue.levelMask != 0
+		    && Integer.numberOfTrailingZeros(readyQueue.levelMask) < level)
+			return true;
+		return current.used >= quanta[level];
+	}
+
+	/**
+	 * Move every thread back to level 0. Threads in the ready queue are
+	 * refiled now; all others notice the new epoch the next time they are
+	 * looked at.
+	 */
+	private void boost() {
+		boostEpoch++;
+
+		if (readyQueue == null)
+			return;
+
+		for (int level = 1; level < quanta.length; level++) {
+			while (readyQueue.levelHead[level] != null) {
+				ThreadState state = readyQueue.levelHead[level];
+				readyQueue.remove(state);
+				readyQueue.add(state);
+			}
+		}
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level, and a bitmap of
+	 * the non-empty levels.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (readyQueue == null)
+				readyQueue = this;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn == this)
+				remove(state);
+			if (this == readyQueue)
+				state.dispatchTime = Machine.timer().getTime();
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * On the ready queue, this is a context switch: the current thread
+		 * is charged and moved between levels before the next one is picked.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (this == readyQueue)
+				account(getThreadState(KThread.currentThread()));
+
+			if (levelMask == 0)
+				return null;
+
+			ThreadState next = levelHead[Integer.numberOfTrailingZeros(levelMask)];
+			acquire(next.thread);
+			return next.thread;
+		}
+
+		/**
+		 * Charge a thread that is leaving the processor. If it used up its
+		 * quantum it goes down a level; if it is not back in this queue, it
+		 * blocked early and goes up one.
+		 */
+		private void account(ThreadState state) {
+			state.charge(Machine.timer().getTime());
+
+			int level = state.getLevel();
+			if (state.used >= quanta[level]) {
+				if (level < quanta.length - 1)
+					level++;
+			}
+			else if (state.waitingOn != this && level > 0) {
+				level--;
+			}
+			else {
+				return;
+			}
+
+			state.level = level;
+			state.used = 0;
+			if (state.waitingOn == this) {
+				remove(state);
+				add(state);
+			}
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (int level = 0; level < quanta.length; level++)
+				for (ThreadState s = levelHead[level]; s != null; s = s.nextWaiter)
+					Lib.debug(dbgMLFQ, s.thread + ": level " + level);
+		}
+
+		void add(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == null);
+
+			int level = state.getLevel();
+			state.waitingOn = this;
+			state.queuedLevel = level;
+			state.prevWaiter = levelTail[level];
+			state.nextWaiter = null;
+			if (levelTail[level] == null)
+				levelHead[level] = state;
+			else
+				levelTail[level].nextWaiter = state;
+			levelTail[level] = state;
+			levelMask |= 1 << level;
+		}
+
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int level = state.queuedLevel;
+			if (state.prevWaiter == null)
+				levelHead[level] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			if (state.nextWaiter == null)
+				levelTail[level] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+			if (levelHead[level] == null)
+				levelMask &= ~(1 << level);
+
+			state.waitingOn = null;
+			state.prevWaiter = state.nextWaiter = null;
+		}
+
+		/** The first and last waiting thread at each level. */
+		ThreadState[] levelHead = new ThreadState[quanta.length];
+		ThreadState[] levelTail = new ThreadState[quanta.length];
+		/** Bit <i>l</i> is set iff some thread is waiting at level <i>l</i>. */
+		int levelMask = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, the time it has used
+	 * there, and its place in the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.dispatchTime = Machine.timer().getTime();
+		}
+
+		/**
+		 * Return the level of the associated thread, resetting it to 0 if a
+		 * boost has happened since it was last looked at.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+			return level;
+		}
+
+		/**
+		 * Add the time since the last charge to the time used at this level.
+		 */
+		void charge(long now) {
+			getLevel();
+			used += now - dispatchTime;
+			dispatchTime = now;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The current level, valid while <tt>epoch</tt> is current. */
+		protected int level = 0;
+		protected long epoch = boostEpoch;
+		/** Ticks used at this level, and when they were last charged. */
+		protected long used = 0;
+		protected long dispatchTime;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected MLFQQueue waitingOn = null;
+		/** The level this thread is filed under in <tt>waitingOn</tt>. */
+		protected int queuedLevel;
+		/** Neighbours in the same level list of <tt>waitingOn</tt>. */
+		protected ThreadState prevWaiter, nextWaiter;
+	}
+
+	/** The quantum, in ticks, of each level. */
+	private long[] quanta;
+	/** Ticks between boosts, and the time of the next one. */
+	private long boostInterval;
+	private long nextBoost;
+	/** Incremented by every boost. */
+	private long boostEpoch = 0;
+	/** The queue of threads waiting for the processor. */
+	private MLFQQueue readyQueue = null;
+
+	private static final char dbgMLFQ = 'q';
+}
@@ -1,6 +1,5 @@
 package nachos.threads;
 
-import java.util.HashSet;
 import java.util.LinkedList;
 
 import nachos.machine.Lib;
@@ -124,7 +123,11 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+	 * are filed in one FIFO list per priority level, and a bitmap records
+	 * which levels are non-empty, so the next thread is found in constant
+	 * time: the highest set bit picks the level, and its head is the thread
+	 * that has waited longest at that priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -143,11 +146,8 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-		
-			if (lockHolder != null) {
-				lockHolder.donationQueue.remove(this);
-				lockHolder.updatePriority();
-			}
+
+			dropOwners();
 			ThreadState threadState = pickNextThread();
 			if (threadState != null) {
 				threadState.acquire(this);
@@ -157,32 +157,149 @@ public class PriorityScheduler extends Scheduler {
 				return null;
 		}
 
+		public void setOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn != this);
+
+			dropOwners();
+			lockHolder = state;
+			state.donationQueue.add(this);
+			state.updatePriority();
+		}
+
+		public void addOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn != this);
+
+			if (lockHolder == null) {
+				setOwner(thread);
+			}
+			else if (state != lockHolder && !coOwners.contains(state)) {
+				coOwners.add(state);
+				state.donationQueue.add(this);
+				state.updatePriority();
+			}
+		}
+
+		public void removeOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state == lockHolder)
+				lockHolder = coOwners.pollFirst();
+			else if (!coOwners.remove(state))
+				return;
+			state.donationQueue.remove(this);
+			state.updatePriority();
+		}
+
+		/**
+		 * Unlink a thread that gives up waiting, and let the holder fall back
+		 * to whatever the remaining waiters donate.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			if (transferPriority) {
+				if (lockHolder != null)
+					lockHolder.updatePriority();
+				for (ThreadState owner : coOwners)
+					owner.updatePriority();
+			}
+			return true;
+		}
+
+		/**
+		 * Take this queue away from all its owners.
+		 */
+		void dropOwners() {
+			if (lockHolder != null) {
+				lockHolder.donationQueue.remove(this);
+				lockHolder.updatePriority();
+				lockHolder = null;
+			}
+			while (!coOwners.isEmpty()) {
+				ThreadState owner = coOwners.removeFirst();
+				owner.donationQueue.remove(this);
+				owner.updatePriority();
+			}
+		}
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
 		 * 
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
-		protected ThreadState pickNextThread() {			
-			//TODO - Optimize it!
-			KThread result = null;
-			int maxPriority = -1;
-
-			for (KThread thread : this.waitQueue)
-				if (result == null || getEffectivePriority(thread) > maxPriority) {
-					result = thread;
-				maxPriority = getEffectivePriority(thread);
-			}
-			if (result == null)
+		protected ThreadState pickNextThread() {
+			if (levelMask == 0)
 				return null;
 
-			return getThreadState(result);
+			return levelHead[topLevel()];
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or -1 if this queue
+		 * is empty.
+		 */
+		int topLevel() {
+			return 31 - Integer.numberOfLeadingZeros(levelMask);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			for (KThread thread : this.waitQueue)
-				Lib.debug('p', thread.toString());
+			for (int level = priorityMaximum; level >= priorityMinimum; level--)
+				for (ThreadState s = levelHead[level]; s != null; s = s.nextWaiter)
+					Lib.debug('p', s.thread.toString());
+		}
+
+		/**
+		 * Append <tt>state</tt> to the list for <tt>level</tt>.
+		 */
+		void add(ThreadState state, int level) {
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.waitingOn = this;
+			state.queuedLevel = level;
+			state.prevWaiter = levelTail[level];
+			state.nextWaiter = null;
+			if (levelTail[level] == null)
+				levelHead[level] = state;
+			else
+				levelTail[level].nextWaiter = state;
+			levelTail[level] = state;
+			levelMask |= 1 << level;
+		}
+
+		/**
+		 * Unlink <tt>state</tt>, which must be waiting on this queue.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int level = state.queuedLevel;
+			if (state.prevWaiter == null)
+				levelHead[level] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			if (state.nextWaiter == null)
+				levelTail[level] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+			if (levelHead[level] == null)
+				levelMask &= ~(1 << level);
+
+			state.waitingOn = null;
+			state.prevWaiter = state.nextWaiter = null;
 		}
 
 		/**
@@ -191,9 +308,18 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 
-		LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		/** The first and last waiting thread at each priority level. */
+		ThreadState[] levelHead = new ThreadState[priorityMaximum + 1];
+		ThreadState[] levelTail = new ThreadState[priorityMaximum + 1];
+		/** Bit <i>p</i> is set iff some thread is waiting at level <i>p</i>. */
+		int levelMask = 0;
 
 		ThreadState lockHolder = null;
+		/**
+		 * The owners besides <tt>lockHolder</tt>, if the queue is shared.
+		 * The list is empty unless <tt>lockHolder</tt> is set.
+		 */
+		LinkedList<ThreadState> coOwners = new LinkedList<ThreadState>();
 	}
 
 	/**
@@ -215,6 +341,14 @@ public class PriorityScheduler extends Scheduler {
 			this.thread = thread;
 
 			setPriority(priorityDefault);
+
+			// A thread owns its own join queue until it finishes, so joiners
+			// donate to it like waiters on a lock donate to the holder.
+			PriorityQueue joinQueue = (PriorityQueue) thread.getJoinQueue();
+			if (joinQueue != null && joinQueue.lockHolder == null) {
+				joinQueue.lockHolder = this;
+				donationQueue.add(joinQueue);
+			}
 		}
 
 		/**
@@ -232,40 +366,21 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			return getEffectivePriority(new HashSet<ThreadState>());
+			return effectivePriority;
 		}
-		
-		private int getEffectivePriority(HashSet<ThreadState> threadStatesSet) {
-			if (threadStatesSet.contains(this)) {
-				Lib.debug('p', "Deadlock detected!");
-				return priority;
-			}
-
-			effectivePriority = priority;
-
-			for (PriorityQueue queue : this.donationQueue)  {
-				if (queue.transferPriority) {
-					for (KThread t : queue.waitQueue) {
-						threadStatesSet.add(this);
-						int p = getThreadState(t).getEffectivePriority(threadStatesSet);
-						threadStatesSet.remove(this);
-						if (p > effectivePriority)
-							effectivePriority = p;
-					}
-				}
-			}
 
-			PriorityQueue queue = (PriorityQueue) this.thread.getJoinQueue();
-			if (queue != null && queue.transferPriority) {
-				for (KThread t : queue.waitQueue) {
-					threadStatesSet.add(this);
-					int p = getThreadState(t).getEffectivePriority(threadStatesSet);
-					threadStatesSet.remove(this);
-					if (p > effectivePriority)
-						effectivePriority = p;
-				}
-			}			
-			return effectivePriority;
+		/**
+		 * Compute the effective priority from scratch: the thread's own
+		 * priority, raised to the highest level waiting on any queue it owns
+		 * that transfers priority. Waiters are filed under their cached
+		 * effective priorities, so this only looks at one bitmap per queue.
+		 */
+		private int computeEffectivePriority() {
+			int p = priority;
+			for (PriorityQueue queue : donationQueue)
+				if (queue.transferPriority && queue.topLevel() > p)
+					p = queue.topLevel();
+			return p;
 		}
 
 		/**
@@ -294,11 +409,16 @@ public class PriorityScheduler extends Scheduler {
 		 * 
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
-		public void waitForAccess(PriorityQueue waitQueue) {			
-			waitQueue.waitQueue.add(thread);
-			if (waitQueue != null && waitQueue.lockHolder == null)
+		public void waitForAccess(PriorityQueue waitQueue) {
+			waitQueue.add(this, effectivePriority);
+			if (!waitQueue.transferPriority)
 				return;
-			waitQueue.lockHolder.updatePriority();
+			if (waitQueue.lockHolder != null
+				&& effectivePriority > waitQueue.lockHolder.effectivePriority)
+				waitQueue.lockHolder.updatePriority();
+			if (!waitQueue.coOwners.isEmpty())
+				for (ThreadState owner : waitQueue.coOwners)
+					owner.updatePriority();
 		}
 
 		/**
@@ -311,8 +431,9 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#acquire
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
-		public void acquire(PriorityQueue waitQueue) {			
-			waitQueue.waitQueue.remove(thread);
+		public void acquire(PriorityQueue waitQueue) {
+			if (waitingOn == waitQueue)
+				waitQueue.remove(this);
 			//The current thread now is the lock holder!
 			waitQueue.lockHolder = this;
 			//Associating waitQueue
@@ -320,18 +441,54 @@ public class PriorityScheduler extends Scheduler {
 			this.updatePriority();
 		}
 		
+		/**
+		 * Recompute the effective priority of this thread and push the change
+		 * along the wait-for chain. Each step moves the thread to its new
+		 * level in the queue it waits on, and the walk stops as soon as a
+		 * thread's effective priority, or the top level of the queue it waits
+		 * on, comes out unchanged. At a queue with several owners, the walk
+		 * branches off to each owner besides the holder. A deadlock cycle
+		 * cannot loop forever, since values along it only move in one
+		 * direction per walk.
+		 */
 		public void updatePriority() {
-			this.effectivePriority = this.lastEffectivePriority;
-			this.getEffectivePriority();
+			ThreadState state = this;
+			while (state != null) {
+				int p = state.computeEffectivePriority();
+				if (p == state.effectivePriority)
+					return;
+				state.effectivePriority = p;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				int top = queue.topLevel();
+				queue.remove(state);
+				queue.add(state, p);
+				if (!queue.transferPriority || queue.topLevel() == top)
+					return;
+				// the other owners of a shared queue take it up too
+				if (!queue.coOwners.isEmpty())
+					for (ThreadState owner : queue.coOwners)
+						owner.updatePriority();
+				state = queue.lockHolder;
+			}
 		}
 
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority = priorityDefault;		
-		protected int effectivePriority = lastEffectivePriority;
-		protected static final int lastEffectivePriority = -1;
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = priorityDefault;
 		// We no loger use PriorityQueue of Java. We followed the advice of Rafa!
 		protected LinkedList<PriorityQueue> donationQueue = new LinkedList<PriorityQueue>();
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected PriorityQueue waitingOn = null;
+		/** The level this thread is filed under in <tt>waitingOn</tt>. */
+		protected int queuedLevel;
+		/** Neighbours in the same level list of <tt>waitingOn</tt>. */
+		protected ThreadState prevWaiter, nextWaiter;
 	}
 }
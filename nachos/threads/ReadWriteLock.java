@@ -0,0 +1,351 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * readers at once, or by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds the lock, then hold
+ * it for reading alongside any other readers.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it alone.
+ * </ul>
+ *
+ * <p>
+ * Without writer preference, a reader is let in whenever no writer holds the
+ * lock, and a writer releasing the lock lets in all waiting readers before
+ * the next writer. With writer preference, a reader also waits while any
+ * writer is waiting, and a writer releasing the lock hands it to the next
+ * writer first.
+ *
+ * <p>
+ * Waiting threads donate priority through the scheduler, as with
+ * <tt>Lock</tt>. While a writer holds the lock, every waiting thread donates
+ * to it. While readers hold the lock, every reader is an owner of the wait
+ * queues, so a waiting thread donates to all of them at once, and a writer
+ * is not held up behind a reader that keeps its own low priority.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock without writer preference. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	writerPreference	<tt>true</tt> if waiting writers should
+     *					hold off new readers.
+     */
+    public ReadWriteLock(boolean writerPreference) {
+	this.writerPreference = writerPreference;
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && !(writerPreference && waitingWriters > 0)) {
+	    readers.add(thread);
+	    share(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.remove(thread));
+	readQueue.removeOwner(thread);
+	writeQueue.removeOwner(thread);
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		admitWriter();
+	    else
+		release();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    donateTo(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0 && (writerPreference || waitingReaders == 0))
+	    admitWriter();
+	else if (waitingReaders > 0)
+	    admitReaders();
+	else
+	    release();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return (writer == thread || readers.contains(thread));
+    }
+
+    /**
+     * Hand the lock to the first waiting writer, and make it the recipient
+     * of every donation.
+     */
+    private void admitWriter() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+	donateTo(writer);
+	writer.ready();
+    }
+
+    /**
+     * Let in every waiting reader, and make them the owners of both wait
+     * queues in place of the writer.
+     */
+    private void admitReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waitingReaders--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+
+	donateTo(readers.getFirst());
+	for (KThread reader : readers)
+	    share(reader);
+    }
+
+    /**
+     * Make <tt>thread</tt>, which holds the lock, the only owner of both wait
+     * queues, so that their waiters donate to it.
+     */
+    private void donateTo(KThread thread) {
+	readQueue.setOwner(thread);
+	writeQueue.setOwner(thread);
+    }
+
+    /**
+     * Add <tt>thread</tt>, which holds the lock for reading, to the owners of
+     * both wait queues, so that their waiters donate to it as well as to the
+     * other readers.
+     */
+    private void share(KThread thread) {
+	readQueue.addOwner(thread);
+	writeQueue.addOwner(thread);
+    }
+
+    /**
+     * Leave the lock free, taking both wait queues away from their owners.
+     */
+    private void release() {
+	KThread nextReader = readQueue.nextThread();
+	KThread nextWriter = writeQueue.nextThread();
+	Lib.assertTrue(nextReader == null && nextWriter == null);
+    }
+
+    /**
+     * Takes the lock for reading or writing, tells <tt>held</tt> once it has
+     * it, and lets it go once told to through <tt>release</tt>.
+     */
+    private static class HolderTest implements Runnable {
+	HolderTest(ReadWriteLock lock, boolean write, Semaphore held,
+		   Semaphore release, Semaphore done) {
+	    this.lock = lock;
+	    this.write = write;
+	    this.held = held;
+	    this.release = release;
+	    this.done = done;
+	}
+
+	public void run() {
+	    if (write)
+		lock.acquireWrite();
+	    else
+		lock.acquireRead();
+	    Lib.assertTrue(lock.isWriteHeldByCurrentThread() == write);
+	    Lib.assertTrue(!write || lock.readers.isEmpty());
+	    turn = ++turns;
+
+	    if (held != null) {
+		held.V();
+		release.P();
+	    }
+
+	    if (write)
+		lock.releaseWrite();
+	    else
+		lock.releaseRead();
+	    Lib.assertTrue(!lock.isHeldByCurrentThread());
+
+	    // a thread that lets go of the lock keeps nothing donated to it
+	    if (ThreadedKernel.scheduler instanceof PriorityScheduler) {
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority()
+			       == ThreadedKernel.scheduler.getPriority());
+		Machine.interrupt().restore(intStatus);
+	    }
+
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private boolean write;
+	private Semaphore held, release, done;
+	/** When this thread got the lock, counting from the first test. */
+	private int turn;
+
+	private static int turns = 0;
+    }
+
+    /**
+     * Test that readers share this lock, that a writer holds it alone, that a
+     * writer waiting for several readers donates to every one of them, and
+     * that writer preference holds off a reader that arrives after a writer.
+     */
+    public static void selfTest() {
+	selfTest(false);
+	selfTest(true);
+    }
+
+    private static void selfTest(boolean writerPreference) {
+	ReadWriteLock lock = new ReadWriteLock(writerPreference);
+	Semaphore held = new Semaphore(0);
+	Semaphore done = new Semaphore(0);
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	boolean donating = scheduler instanceof PriorityScheduler;
+
+	KThread[] readers = new KThread[3];
+	Semaphore[] release = new Semaphore[readers.length];
+	for (int i=0; i<readers.length; i++) {
+	    release[i] = new Semaphore(0);
+	    readers[i] = new KThread(new HolderTest(lock, false, held,
+						    release[i], done));
+	    readers[i].setName("reader " + i).fork();
+	}
+	for (int i=0; i<readers.length; i++)
+	    held.P();
+
+	HolderTest writing = new HolderTest(lock, true, null, null, done);
+	KThread writer = new KThread(writing).setName("writer");
+	if (donating) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    scheduler.setPriority(writer, PriorityScheduler.priorityMaximum);
+	    Machine.interrupt().restore(intStatus);
+	}
+	writer.fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	HolderTest late = new HolderTest(lock, false, null, null, done);
+	new KThread(late).setName("late reader").fork();
+	if (writerPreference) {
+	    while (lock.waitingReaders == 0)
+		KThread.yield();
+	}
+	else {
+	    done.P();
+	}
+
+	for (int i=0; i<readers.length; i++) {
+	    if (donating) {
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = scheduler.getEffectivePriority(writer);
+		for (int j=i; j<readers.length; j++) {
+		    Lib.assertTrue(scheduler.getEffectivePriority(readers[j])
+				   >= priority);
+		}
+		Machine.interrupt().restore(intStatus);
+	    }
+
+	    release[i].V();
+	    done.P();
+	}
+
+	done.P();
+	if (writerPreference)
+	    done.P();
+	Lib.assertTrue((late.turn < writing.turn) != writerPreference);
+    }
+
+    private boolean writerPreference;
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+
+    private int waitingReaders = 0, waitingWriters = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -69,6 +69,16 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from wherever it is in the queue. This is a linear
+	 * search, like the rest of this scheduler.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
@@ -154,4 +154,23 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * to decide whether the current thread should be preempted. Schedulers
+     * that track CPU usage can also use this to do periodic work.
+     *
+     * @return	<tt>true</tt> if the current thread should yield. The default
+     *		preempts on every timer interrupt.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Called by the kernel when the machine halts, to print any statistics
+     * this scheduler keeps. The default prints nothing.
+     */
+    public void print() {
+    }
 }
@@ -14,6 +14,11 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>tryP()</tt> is a form of <tt>P()</tt> that gives up after a given number
+ * of ticks. A semaphore can be given a name, under which
+ * <tt>LockProfiler</tt> reports it.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -28,7 +33,18 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new named semaphore.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name to profile the semaphore under.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profiler = LockProfiler.create("Semaphore", name);
     }
 
     /**
@@ -38,16 +54,59 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long requested = (profiler != null) ? Machine.timer().getTime() : 0;
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+	    if (profiler != null)
+		profiler.acquired(requested);
 	}
 	else {
 	    value--;
+	    if (profiler != null)
+		profiler.acquired();
 	}
 
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up if it is still zero after <tt>timeout</tt> ticks.
+     *
+     * @param	timeout	the most ticks to wait. If not positive, the semaphore
+     *			is only decremented if it is non-zero now.
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (value > 0) {
+	    value--;
+	    if (profiler != null)
+		profiler.acquired();
+	}
+	else if (timeout > 0) {
+	    long requested = (profiler != null) ? Machine.timer().getTime() : 0;
+	    // a V() that wakes this thread passes its unit straight to it
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    decremented = ThreadedKernel.alarm.sleepOn(waitQueue, timeout);
+	    if (profiler != null) {
+		if (decremented)
+		    profiler.acquired(requested);
+		else
+		    profiler.timedOut(requested);
+	    }
+	}
+	else {
+	    decremented = false;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -99,6 +158,7 @@ public class Semaphore {
     }
 
     private int value;
+    private LockProfiler profiler;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,481 @@
+package nachos.threads;
+
+import java.util.LinkedList;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, like a
+ * lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Every waiting thread has a <i>stride</i>, inversely proportional to its
+ * tickets, and a <i>pass</i> value. Each queue keeps its waiters in a min-heap
+ * ordered by pass, and always dequeues the thread with the smallest pass. A
+ * thread that joins a queue is given a pass one stride beyond the pass of the
+ * last thread dequeued from it. A thread that keeps rejoining the ready queue
+ * therefore advances by exactly its stride each time it runs, and each thread
+ * is dequeued in exact proportion to its tickets. Ties go to the thread that
+ * joined first.
+ *
+ * <p>
+ * Tickets are donated through locks and joins exactly as in
+ * <tt>LotteryScheduler</tt>: they add, rather than taking the maximum. When a
+ * waiting thread's tickets change, the part of its pass still ahead of the
+ * queue is rescaled to the new stride.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getEffectivePriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+			&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority != priorityMaximum);
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority != priorityMinimum);
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets a thread can have on its own. Donation
+	 * can take a thread's effective tickets beyond this.
+	 */
+	public static final int priorityMaximum = 1 << 20;
+	/**
+	 * The stride of a thread with one ticket. A thread with <i>t</i> tickets
+	 * has a stride of <tt>stride1 / t</tt>, but never less than one.
+	 */
+	public static final long stride1 = 1L << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues threads in order of pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public void setOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn != this);
+			state.acquire(this);
+		}
+
+		public void addOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn != this);
+
+			if (holder == null) {
+				state.acquire(this);
+			}
+			else if (state != holder && !coOwners.contains(state)) {
+				coOwners.add(state);
+				if (transferPriority)
+					state.addTickets(total);
+			}
+		}
+
+		public void removeOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state == holder)
+				holder = coOwners.pollFirst();
+			else if (!coOwners.remove(state))
+				return;
+			if (transferPriority)
+				state.addTickets(-total);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (holder != null)
+				release();
+
+			if (size == 0)
+				return null;
+
+			ThreadState next = heap[0];
+			globalPass = next.pass;
+			next.acquire(this);
+			return next.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (int i = 0; i < size; i++)
+				Lib.debug(dbgStride, heap[i].thread + ": pass " + heap[i].pass
+					  + ", tickets " + heap[i].tickets);
+		}
+
+		/**
+		 * Give up the current owners' claim on this queue, taking back
+		 * the tickets its waiters were donating to them.
+		 */
+		void release() {
+			ThreadState oldHolder = holder;
+			holder = null;
+			if (transferPriority)
+				oldHolder.addTickets(-total);
+
+			while (!coOwners.isEmpty()) {
+				ThreadState owner = coOwners.removeFirst();
+				if (transferPriority)
+					owner.addTickets(-total);
+			}
+		}
+
+		/**
+		 * Pass a change of <tt>delta</tt> in the tickets of the waiters
+		 * on to every owner.
+		 */
+		void donate(long delta) {
+			if (!transferPriority || holder == null)
+				return;
+
+			holder.addTickets(delta);
+			if (!coOwners.isEmpty())
+				for (ThreadState owner : coOwners)
+					owner.addTickets(delta);
+		}
+
+		/**
+		 * Add <tt>state</tt> to the heap, one stride past the last thread
+		 * dequeued, and give its tickets to the holder.
+		 */
+		void insert(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			state.waitingOn = this;
+			state.pass = globalPass + state.stride();
+			state.sequence = nextSequence++;
+			total += state.tickets;
+			heap[size] = state;
+			state.heapIndex = size++;
+			siftUp(state.heapIndex);
+
+			donate(state.tickets);
+		}
+
+		/**
+		 * Remove <tt>state</tt>, which must be waiting on this queue.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int i = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			if (last != state) {
+				heap[i] = last;
+				last.heapIndex = i;
+				siftDown(i);
+				siftUp(last.heapIndex);
+			}
+			state.waitingOn = null;
+			total -= state.tickets;
+
+			donate(-state.tickets);
+		}
+
+		/**
+		 * Account for a change of <tt>delta</tt> in the tickets of
+		 * <tt>state</tt>, whose stride used to be <tt>oldStride</tt>.
+		 */
+		void rescale(ThreadState state, long delta, long oldStride) {
+			total += delta;
+
+			long remain = state.pass - globalPass;
+			state.pass = globalPass + remain * state.stride() / oldStride;
+			siftDown(state.heapIndex);
+			siftUp(state.heapIndex);
+		}
+
+		private boolean less(ThreadState a, ThreadState b) {
+			return a.pass < b.pass
+				|| (a.pass == b.pass && a.sequence < b.sequence);
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!less(state, heap[parent]))
+					break;
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && less(heap[child + 1], heap[child]))
+					child++;
+				if (!less(heap[child], state))
+					break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting threads, as a binary min-heap on pass. */
+		private ThreadState[] heap = new ThreadState[8];
+		private int size = 0;
+		/** The sum of the effective tickets of the waiting threads. */
+		private long total = 0;
+		/** The pass of the last thread dequeued. */
+		private long globalPass = 0;
+		/** Breaks ties between equal passes in order of arrival. */
+		private long nextSequence = 0;
+
+		ThreadState holder = null;
+		/**
+		 * The owners besides <tt>holder</tt>, if the queue is shared.
+		 * The list is empty unless <tt>holder</tt> is set.
+		 */
+		LinkedList<ThreadState> coOwners = new LinkedList<ThreadState>();
+		/** Set while a change is passed on to the other owners. */
+		private boolean sharing = false;
+	}
+
+	/**
+	 * The scheduling state of a thread: its own tickets, its effective
+	 * tickets, and its place in the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			// A thread owns its own join queue until it finishes.
+			StrideQueue joinQueue = (StrideQueue) thread.getJoinQueue();
+			if (joinQueue != null && joinQueue.holder == null)
+				joinQueue.holder = this;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public int getEffectivePriority() {
+			return (int) Math.min(tickets, Integer.MAX_VALUE);
+		}
+
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+			addTickets(delta);
+		}
+
+		public void waitForAccess(StrideQueue waitQueue) {
+			if (waitQueue.holder == this)
+				waitQueue.release();
+			waitQueue.insert(this);
+		}
+
+		public void acquire(StrideQueue waitQueue) {
+			if (waitQueue.holder != null)
+				waitQueue.release();
+			if (waitingOn == waitQueue)
+				waitQueue.remove(this);
+
+			waitQueue.holder = this;
+			if (waitQueue.transferPriority)
+				addTickets(waitQueue.total);
+		}
+
+		/**
+		 * Return the stride for the current effective tickets.
+		 */
+		long stride() {
+			return Math.max(1, stride1 / tickets);
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of this thread and pass
+		 * it on along the chain of holders it is waiting behind, rescaling
+		 * the pass of each thread on the way. A deadlock cycle is walked once.
+		 * Each owner of a shared queue besides the holder gets a walk of
+		 * its own, as in <tt>LotteryScheduler</tt>.
+		 */
+		void addTickets(long delta) {
+			int stamp = ++walkStamp;
+			ThreadState state = this;
+			while (delta != 0 && state.stamp != stamp) {
+				state.stamp = stamp;
+
+				long oldStride = state.stride();
+				state.tickets += delta;
+
+				StrideQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+				queue.rescale(state, delta, oldStride);
+				if (!queue.transferPriority || queue.holder == null)
+					return;
+				if (!queue.coOwners.isEmpty() && !queue.sharing) {
+					queue.sharing = true;
+					for (ThreadState owner : queue.coOwners)
+						owner.addTickets(delta);
+					queue.sharing = false;
+				}
+				state = queue.holder;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The tickets of the associated thread. */
+		protected int priority = priorityDefault;
+		/** Own tickets plus those donated by waiters on owned queues. */
+		protected long tickets = priorityDefault;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected StrideQueue waitingOn = null;
+		/** The pass, position and arrival order in <tt>waitingOn</tt>. */
+		protected long pass;
+		protected int heapIndex;
+		protected long sequence;
+		/** The last <tt>addTickets()</tt> walk that passed this thread. */
+		private int stamp = 0;
+	}
+
+	/** Incremented by every <tt>addTickets()</tt> walk. */
+	private int walkStamp = 0;
+
+	private static final char dbgStride = 's';
+}
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,62 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Make the specified thread, which already has access by some other means,
+     * the owner of this queue. If this queue transfers priority, the threads
+     * waiting on it then donate to the new owner instead of the old one.
+     * Unlike <tt>acquire()</tt>, this may be called while threads are waiting,
+     * and for a thread returned from <tt>nextThread()</tt>. A queue that does
+     * not track its owner need not do anything.
+     *
+     * @param	thread	the new owner, which must not be waiting on this
+     *			queue.
+     */
+    public void setOwner(KThread thread) {
+    }
+
+    /**
+     * Add the specified thread, which already has access by some other means,
+     * to the owners of this queue, as when several threads share a resource.
+     * If this queue transfers priority, the threads waiting on it then donate
+     * to every owner. <tt>setOwner()</tt> and <tt>nextThread()</tt> leave the
+     * queue with a single owner again. A queue that does not track its owner
+     * need not do anything.
+     *
+     * @param	thread	the new owner, which must not be waiting on this
+     *			queue. Nothing changes if it is already an owner.
+     */
+    public void addOwner(KThread thread) {
+    }
+
+    /**
+     * Take the specified thread off the owners of this queue, so that the
+     * threads waiting on it stop donating to it. The queue keeps any other
+     * owners it has. A queue that does not track its owner need not do
+     * anything.
+     *
+     * @param	thread	the owner to remove. Nothing changes if it is not an
+     *			owner.
+     */
+    public void removeOwner(KThread thread) {
+    }
+
+    /**
+     * Take the specified thread off this queue without giving it access, as
+     * when a timed wait runs out. If this queue transfers priority, the thread
+     * stops donating to the owner. Queues that cannot do this do not support
+     * timed waits.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue,
+     *		<tt>false</tt> if it was not (for example, because
+     *		<tt>nextThread()</tt> has already returned it).
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("timed waits are not supported by this queue");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
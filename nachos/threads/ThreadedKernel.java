@@ -36,6 +36,14 @@ public class ThreadedKernel extends Kernel {
 
 		alarm  = new Alarm();
 
+		Machine.setHaltHandler(new Runnable() {
+			public void run() {
+				KThread.printAccounting();
+				LockProfiler.print();
+				scheduler.print();
+			}
+		});
+
 		Machine.interrupt().enable();
 	}
 
@@ -49,7 +57,11 @@ public class ThreadedKernel extends Kernel {
 		//Boat.selfTest();
 		KThread.selfTest();
 		Semaphore.selfTest();
+		Alarm.selfTest();
 		SynchList.selfTest();
+		BoundedSynchList.selfTest();
+		ReadWriteLock.selfTest();
+		Channel.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -99,8 +99,8 @@ public class SynchConsole {
     private boolean charAvailable = false;
 
     private SerialConsole console;
-    private Lock readLock = new Lock();
-    private Lock writeLock = new Lock();
+    private Lock readLock = new Lock("SynchConsole.readLock");
+    private Lock writeLock = new Lock("SynchConsole.writeLock");
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
@@ -24,7 +24,7 @@ public class UserKernel extends ThreadedKernel {
         super.initialize(args);
 
         UserKernel.physicalPages = new LinkedList<Integer>();
-        UserKernel.mutex = new Lock();
+        UserKernel.mutex = new Lock("UserKernel.mutex");
 
 		//Adding pageIds
 		for (int numberOfPage = 0; numberOfPage < Machine.processor().getNumPhysPages() ; numberOfPage++) {
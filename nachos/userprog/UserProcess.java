@@ -778,7 +778,7 @@ public class UserProcess {
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 	private static int CURRENT_PID = 0;
-    private static Lock lock = new Lock();
+    private static Lock lock = new Lock("UserProcess.lock");
     private static int remainingProcesses = 0;
 
 	private HashMap<Integer, OpenFile> fileDescriptorTable;
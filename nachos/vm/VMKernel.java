@@ -45,7 +45,7 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	   super.initialize(args);
-       mutex = new Lock();
+       mutex = new Lock("VMKernel.mutex");
        swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
     }
 
@@ -160,10 +160,10 @@ public class VMProcess extends UserProcess {
                     page = VMKernel.loadPage(this.getPID(), vpn); 
                 }
                 
-                int randomNumber = (int) Math.floor(Math.random()*(Machine.processor().getTLBSize()));                  
-                Lib.debug(dbgProcess, "RandomIndex: " + randomNumber + ", Size: " + Machine.processor().getTLBSize());
+                int tlbIndex = Machine.processor().chooseTLBEntry(vpn);
+                Lib.debug(dbgProcess, "TLBIndex: " + tlbIndex + ", Size: " + Machine.processor().getTLBSize());
 
-                Machine.processor().writeTLBEntry(randomNumber, page);
+                Machine.processor().writeTLBEntry(tlbIndex, page);
                 break;
 	       default:
 	           super.handleException(cause);